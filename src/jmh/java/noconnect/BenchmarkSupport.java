@@ -0,0 +1,65 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/*
+ * Loads a fixed config and builds an URLSecMgr for the benchmarks, nothing here does network IO.
+ * */
+final class BenchmarkSupport {
+    static final String ALLOWED_THREAD = "NoConnectBench-Allowed";
+
+    private static final String CONFIG = String.join("\n",
+            "enable = true",
+            "allow_dns = true",
+            "log_type = \"NONE\"",
+            "audit_mode = false",
+            "log_caller = false",
+            "hot_reload = false",
+            "[allowed]",
+            "    hosts = [\"*.minecraft.net\", \"*.mojang.com\", \"api.example.com\"]",
+            "    ip = [\"203.0.113.0/24\"]",
+            "    thread = [\"" + ALLOWED_THREAD + "\"]",
+            "[cache]",
+            "    ttl = 86400",
+            "    preresolve = false",
+            "");
+
+    private BenchmarkSupport() {
+    }
+
+    static URLSecMgr createSecMgr() {
+        try {
+            Path dir = Files.createTempDirectory("noconnect-jmh");
+            Path configPath = dir.resolve("noconnect.toml");
+            Files.write(configPath, CONFIG.getBytes(StandardCharsets.UTF_8));
+            Config.loadConfig(configPath);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Policy.publish(Policy.compile());
+        URLSecMgr secMgr = new URLSecMgr();
+        // as if resolved by HostResolver, keeps DNS out of the measurement
+        ResolutionCache cache = secMgr.getResolutionCache();
+        cache.put("198.51.100.7", "api.example.com");
+        try {
+            cache.markResolved("api.example.com",
+                    new InetAddress[]{InetAddress.getByAddress("api.example.com", new byte[]{(byte) 198, 51, 100, 7})});
+            cache.markResolved("textures.minecraft.net",
+                    new InetAddress[]{InetAddress.getByAddress("textures.minecraft.net", new byte[]{(byte) 192, 0, 2, 1})});
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+        return secMgr;
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.FilePermission;
+import java.net.URLPermission;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Cost of each stage of URLSecMgr, called directly on an instance that is not installed.
+ * */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CheckConnectBenchmark {
+    private URLSecMgr secMgr;
+    private final URLPermission urlPermission = new URLPermission("https://api.example.com/v1/profile", "GET:");
+    private final FilePermission filePermission = new FilePermission("config/noconnect.toml", "read");
+    private final RuntimePermission runtimePermission = new RuntimePermission("getClassLoader");
+
+    @Setup
+    public void setup() {
+        secMgr = BenchmarkSupport.createSecMgr();
+    }
+
+    @State(Scope.Thread)
+    public static class AllowedThread {
+        private String previousName;
+
+        @Setup
+        public void setup() {
+            previousName = Thread.currentThread().getName();
+            Thread.currentThread().setName(BenchmarkSupport.ALLOWED_THREAD + "-" + Thread.currentThread().getId());
+        }
+
+        @TearDown
+        public void tearDown() {
+            Thread.currentThread().setName(previousName);
+        }
+    }
+
+    @Benchmark
+    public void loopback() {
+        secMgr.checkConnect("127.0.0.1", 25565);
+    }
+
+    @Benchmark
+    public void cachedIP() {
+        secMgr.checkConnect("198.51.100.7", 443);
+    }
+
+    @Benchmark
+    public void allowedIP() {
+        secMgr.checkConnect("203.0.113.10", 25565);
+    }
+
+    @Benchmark
+    public void allowedHost() {
+        secMgr.checkConnect("api.example.com", 443);
+    }
+
+    @Benchmark
+    public void wildcardHost() {
+        secMgr.checkConnect("textures.minecraft.net", 443);
+    }
+
+    @Benchmark
+    public void allowedThread(AllowedThread thread) {
+        secMgr.checkConnect("blocked.example.org", 443);
+    }
+
+    @Benchmark
+    public Exception denied() {
+        try {
+            secMgr.checkConnect("blocked.example.org", 443);
+            return null;
+        } catch (Exception e) { // thrown without being declared
+            return e;
+        }
+    }
+
+    @Benchmark
+    public void urlPermission() {
+        secMgr.checkPermission(urlPermission);
+    }
+
+    @Benchmark
+    public void filePermission() {
+        secMgr.checkPermission(filePermission);
+    }
+
+    @Benchmark
+    public void runtimePermission() {
+        secMgr.checkPermission(runtimePermission);
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLPermission;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.Permission;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ObjIntConsumer;
+
+/*
+ * Everyday JDK operations with no security manager (the baseline), with URLSecMgr installed,
+ * and with the TRANSFORMER enforcement, where only the connection pays for the check inserted before it.
+ * The legacy mode only overrides checkPermission, as URLSecMgr did, each file access builds a FilePermission.
+ * A forked JVM is used per mode as the security manager cannot be removed once installed.
+ * */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InstalledBenchmark {
+    private static final int SMALL_FILES = 64;
+
+    @Param({"none", "noconnect", "legacy", "transformer"})
+    public String securityManager;
+
+    private final Path file = Paths.get("build.gradle").toAbsolutePath();
+    private ServerSocket server;
+    private Path smallFiles;
+    private boolean transformer;
+    // the field NetworkCallTransformer adds to a transformed class
+    private static Object engine;
+
+    @Setup
+    public void setup() throws IOException, JMException {
+        server = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    server.accept().close();
+                } catch (IOException ignored) {
+                }
+            }
+        }, "NoConnectBench-Acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        smallFiles = Files.createTempDirectory("noconnect-bench");
+        for (int i = 0; i < SMALL_FILES; i++) {
+            Files.write(smallFiles.resolve(i + ".txt"), ("file " + i).getBytes(StandardCharsets.UTF_8));
+        }
+        if ("noconnect".equals(securityManager)) {
+            System.setSecurityManager(BenchmarkSupport.createSecMgr());
+        } else if ("legacy".equals(securityManager)) {
+            System.setSecurityManager(new LegacySecMgr(BenchmarkSupport.createSecMgr()));
+        } else if ("transformer".equals(securityManager)) {
+            new TransformerEngine(BenchmarkSupport.createSecMgr()).publish();
+            bindEngine();
+            transformer = true;
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.close();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(smallFiles)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(smallFiles);
+    }
+
+    @Benchmark
+    public boolean fileExists() {
+        return Files.exists(file);
+    }
+
+    /*
+     * Resource pack and config loading, many small files in a row
+     */
+    @Benchmark
+    public long readSmallFiles() throws IOException {
+        long length = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(smallFiles)) {
+            for (Path file : files) {
+                length += Files.readAllBytes(file).length;
+            }
+        }
+        return length;
+    }
+
+    @Benchmark
+    public String systemProperty() {
+        return System.getProperty("user.dir");
+    }
+
+    @Benchmark
+    public void loopbackConnect() throws IOException {
+        InetSocketAddress address = new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+        try (Socket socket = new Socket()) {
+            if (transformer) {
+                check(address, -1);
+            }
+            socket.connect(address);
+        }
+    }
+
+    /*
+     * Same as the static initializer and the helper NetworkCallTransformer adds to a transformed class
+     * */
+    private static void bindEngine() throws JMException {
+        engine = ManagementFactory.getPlatformMBeanServer()
+                .getAttribute(new ObjectName(TransformerEngine.OBJECT_NAME), TransformerEngine.ATTRIBUTE);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void check(Object target, int port) {
+        ((ObjIntConsumer<Object>) engine).accept(target, port);
+    }
+
+    /*
+     * The permission handling before the type dispatch, every check of the JDK reaches the instanceof chain
+     * */
+    private static final class LegacySecMgr extends SecurityManager {
+        private final URLSecMgr delegate;
+
+        private LegacySecMgr(URLSecMgr delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void checkConnect(String host, int port) {
+            delegate.checkConnect(host, port);
+        }
+
+        @Override
+        public void checkConnect(String host, int port, Object context) {
+            delegate.checkConnect(host, port, context);
+        }
+
+        @Override
+        public void checkPermission(Permission perm) {
+            if (perm instanceof URLPermission) {
+                delegate.checkPermission(perm);
+            } else if (perm instanceof RuntimePermission && "setSecurityManager".equals(perm.getName())) {
+                throw new SecurityException("Attempting to replace NoConnect Security Manager!");
+            }
+        }
+
+        @Override
+        public void checkPermission(Permission perm, Object context) {
+            checkPermission(perm);
+        }
+    }
+
+}
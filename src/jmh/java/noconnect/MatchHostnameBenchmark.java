@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Linear NetworkUtil#matchesHostname scan, as processHost did before, against the compiled HostMatcher.
+ * */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MatchHostnameBenchmark {
+    @Param({"3", "100", "10000"})
+    public int allowlistSize;
+
+    @Param({"textures.minecraft.net", "cdn.unlisted.example.org"})
+    public String host;
+
+    private List<String> allowlist;
+    private HostMatcher matcher;
+
+    @Setup
+    public void setup() {
+        allowlist = new ArrayList<>();
+        allowlist.add("*.mojang.com");
+        allowlist.add("*.minecraftservices.com");
+        for (int i = 2; i < allowlistSize - 1; i++) {
+            allowlist.add(i % 2 == 0 ? "*.mod" + i + ".example.com" : "api" + i + ".example.net");
+        }
+        allowlist.add("*.minecraft.net"); // last, the worst case of the scan
+        matcher = HostMatcher.compile(allowlist);
+    }
+
+    private boolean scan() {
+        String h = host;
+        return allowlist.stream().anyMatch(s -> NetworkUtil.matchesHostname(h, s));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean scan1() {
+        return scan();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean scan4() {
+        return scan();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean scan16() {
+        return scan();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean trie1() {
+        return matcher.matches(host);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean trie4() {
+        return matcher.matches(host);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean trie16() {
+        return matcher.matches(host);
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.math.BigInteger;
+import java.util.Collection;
+
+/*
+ * Compiled form of "allowed.ip", one binary radix tree per address family keyed on the address bits.
+ * Entries may be a single IP, a CIDR block (10.0.0.0/8, 2001:db8::/32) or an inclusive range (10.0.0.1-10.0.0.50),
+ * a lookup walks at most prefix length nodes without allocating.
+ * */
+final class AddressMatcher {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final Node v4Root;
+    private final Node v6Root;
+
+    private AddressMatcher(Node v4Root, Node v6Root) {
+        this.v4Root = v4Root;
+        this.v6Root = v6Root;
+    }
+
+    static AddressMatcher compile(Collection<String> entries) {
+        Node v4Root = new Node();
+        Node v6Root = new Node();
+        HostAddress address = new HostAddress();
+        for (String entry : entries) {
+            if (!add(entry.trim(), address, v4Root, v6Root)) {
+                LOGGER.warn("Ignoring invalid allowed IP entry \"{}\"", entry);
+            }
+        }
+        return new AddressMatcher(v4Root, v6Root);
+    }
+
+    boolean matches(HostAddress address) {
+        if (address.family == HostAddress.IPV4) {
+            return matches(v4Root, 0, address.v4 & 0xFFFFFFFFL, 32);
+        }
+        if (address.family == HostAddress.IPV6) {
+            return matches(v6Root, address.hi, address.lo, 128);
+        }
+        return false;
+    }
+
+    private static boolean matches(Node node, long hi, long lo, int bits) {
+        // IPv4 is kept in the lower 32 bits of lo
+        for (int i = bits - 1; ; i--) {
+            if (node.terminal) {
+                return true;
+            }
+            if (i < 0) {
+                return false;
+            }
+            long bit = i >= 64 ? (hi >>> (i - 64)) & 1 : (lo >>> i) & 1;
+            node = bit == 0 ? node.zero : node.one;
+            if (node == null) {
+                return false;
+            }
+        }
+    }
+
+    private static boolean add(String entry, HostAddress address, Node v4Root, Node v6Root) {
+        int slash = entry.indexOf('/');
+        int dash = entry.indexOf('-');
+        if (slash >= 0) {
+            if (!address.parse(entry.substring(0, slash))) {
+                return false;
+            }
+            int bits = address.family == HostAddress.IPV4 ? 32 : 128;
+            int prefix;
+            try {
+                prefix = Integer.parseInt(entry.substring(slash + 1));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            if (prefix < 0 || prefix > bits) {
+                return false;
+            }
+            insert(address.family == HostAddress.IPV4 ? v4Root : v6Root, toBigInteger(address), prefix, bits);
+            return true;
+        }
+        if (dash >= 0) {
+            if (!address.parse(entry.substring(0, dash))) {
+                return false;
+            }
+            int family = address.family;
+            BigInteger start = toBigInteger(address);
+            if (!address.parse(entry.substring(dash + 1)) || address.family != family) {
+                return false;
+            }
+            BigInteger end = toBigInteger(address);
+            if (start.compareTo(end) > 0) {
+                return false;
+            }
+            int bits = family == HostAddress.IPV4 ? 32 : 128;
+            Node root = family == HostAddress.IPV4 ? v4Root : v6Root;
+            // split the range into the CIDR blocks covering it
+            while (start.compareTo(end) <= 0) {
+                int size = start.signum() == 0 ? bits : Math.min(start.getLowestSetBit(), bits);
+                while (size > 0 && start.add(BigInteger.ONE.shiftLeft(size)).subtract(BigInteger.ONE).compareTo(end) > 0) {
+                    size--;
+                }
+                insert(root, start, bits - size, bits);
+                start = start.add(BigInteger.ONE.shiftLeft(size));
+            }
+            return true;
+        }
+        if (!address.parse(entry)) {
+            return false;
+        }
+        int bits = address.family == HostAddress.IPV4 ? 32 : 128;
+        insert(address.family == HostAddress.IPV4 ? v4Root : v6Root, toBigInteger(address), bits, bits);
+        return true;
+    }
+
+    private static void insert(Node root, BigInteger value, int prefix, int bits) {
+        Node node = root;
+        for (int i = 0; i < prefix && !node.terminal; i++) {
+            if (value.testBit(bits - 1 - i)) {
+                node = node.one != null ? node.one : (node.one = new Node());
+            } else {
+                node = node.zero != null ? node.zero : (node.zero = new Node());
+            }
+        }
+        // a shorter block already covers everything below
+        node.terminal = true;
+        node.zero = null;
+        node.one = null;
+    }
+
+    private static BigInteger toBigInteger(HostAddress address) {
+        if (address.family == HostAddress.IPV4) {
+            return BigInteger.valueOf(address.v4 & 0xFFFFFFFFL);
+        }
+        return toUnsigned(address.hi).shiftLeft(64).or(toUnsigned(address.lo));
+    }
+
+    private static BigInteger toUnsigned(long value) {
+        BigInteger big = BigInteger.valueOf(value & Long.MAX_VALUE);
+        return value < 0 ? big.setBit(63) : big;
+    }
+
+    private static final class Node {
+        private Node zero;
+        private Node one;
+        private boolean terminal;
+    }
+
+}
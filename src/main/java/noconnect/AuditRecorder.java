@@ -0,0 +1,314 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import com.google.common.net.InternetDomainName;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/*
+ * Learns the endpoints connected in audit mode and suggests the allowed list for them.
+ * A repeated endpoint costs a map read and a few field updates, the caller is only attributed on first sighting.
+ * An IP connected right after the same thread looked up a host is recorded under that host, if the lookup resolved to it.
+ * */
+final class AuditRecorder implements NoConnectRecorderMBean {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final String OBJECT_NAME = "noconnect:type=AuditRecorder";
+    private static final int MAX_ENDPOINTS = 4096;
+    private static final int MAX_PORTS = 32;
+    private static final int MAX_ADDRESSES = 16;
+    // a connection this long after a lookup on the same thread, to one of its addresses, is attributed to the looked up host
+    private static final long LINK_MILLIS = 5000;
+    private static final long SEEN_GRANULARITY = 1000;
+
+    private final ConcurrentHashMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final ThreadLocal<Endpoint> lastLookup = new ThreadLocal<>();
+    private final LongAdder untracked = new LongAdder();
+    private final Function<String, InetAddress[]> lookup;
+    private volatile Path file;
+    private boolean auditing;
+
+    /**
+     * @param lookup the addresses a looked up host resolved to, null if it did not resolve
+     */
+    AuditRecorder(Function<String, InetAddress[]> lookup) {
+        this.lookup = lookup;
+    }
+
+    /**
+     * @return false if the endpoint was not seen before, then recordNew must be called
+     */
+    boolean recordKnown(String host, int port, boolean isIP) {
+        long now = System.currentTimeMillis();
+        if (isIP) {
+            Endpoint lookup = lastLookup.get();
+            if (lookup != null && now - lookup.lastSeen < LINK_MILLIS && resolvesTo(lookup.host, host)) {
+                lookup.addAddress(host);
+                lookup.record(port, now);
+                return true;
+            }
+        }
+        Endpoint endpoint = endpoints.get(host);
+        if (endpoint == null) {
+            return false;
+        }
+        endpoint.record(port, now);
+        if (!isIP) {
+            lastLookup.set(endpoint);
+        }
+        return true;
+    }
+
+    private boolean resolvesTo(String host, String ip) {
+        InetAddress[] addresses = lookup.apply(host);
+        if (addresses == null) {
+            return false;
+        }
+        HostAddress address = new HostAddress();
+        try {
+            return address.parse(ip) && Arrays.asList(addresses).contains(address.toInetAddress());
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    void recordNew(String host, int port, boolean isIP, String callers) {
+        if (endpoints.size() >= MAX_ENDPOINTS) {
+            untracked.increment();
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Endpoint endpoint = endpoints.computeIfAbsent(host, h -> new Endpoint(h, isIP, callers, now));
+        endpoint.record(port, now);
+        if (!isIP) {
+            lastLookup.set(endpoint);
+        }
+    }
+
+    /**
+     * Write the suggestion to the file at shutdown, when audit mode is turned off and on request by JMX
+     */
+    void start(Path file) {
+        this.file = file;
+        auditing = Policy.get().auditMode;
+        Policy.addListener(policy -> {
+            if (auditing && !policy.auditMode) {
+                writeSuggestion();
+            }
+            auditing = policy.auditMode;
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread(this::writeSuggestion, "NoConnect-Recorder-Shutdown"));
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(this, NoConnectRecorderMBean.class), new ObjectName(OBJECT_NAME));
+        } catch (JMException | SecurityException e) {
+            LOGGER.warn("Unable to register {}", OBJECT_NAME, e);
+        }
+    }
+
+    @Override
+    public int getEndpointCount() {
+        return endpoints.size();
+    }
+
+    @Override
+    public synchronized String writeSuggestion() {
+        Path target = file;
+        if (target == null) {
+            return "Recorder is not started";
+        }
+        if (endpoints.isEmpty()) {
+            return "No endpoint recorded";
+        }
+        try {
+            Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+            Files.write(temp, suggest().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            LOGGER.info("Wrote allowed list suggested by audit mode to {}", target);
+            return target.toString();
+        } catch (IOException e) {
+            LOGGER.warn("Unable to write {}", target, e);
+            return "Unable to write " + target + ": " + e;
+        }
+    }
+
+    private String suggest() {
+        // registrable domain -> hosts under it
+        Map<String, List<Endpoint>> domains = new TreeMap<>();
+        List<Endpoint> addresses = new ArrayList<>();
+        for (Endpoint endpoint : endpoints.values()) {
+            if (endpoint.isIP) {
+                addresses.add(endpoint);
+            } else {
+                domains.computeIfAbsent(getDomain(endpoint.host), d -> new ArrayList<>()).add(endpoint);
+            }
+        }
+
+        StringBuilder toml = new StringBuilder();
+        toml.append("# Suggested by NoConnect from connections allowed in audit mode, ").append(Instant.now()).append('\n');
+        toml.append("# Review the entries, then copy them into the [allowed] table of noconnect.toml\n");
+        if (untracked.sum() > 0) {
+            toml.append("# ").append(untracked.sum()).append(" connections to other endpoints were not recorded\n");
+        }
+        toml.append("[allowed]\n    hosts = [\n");
+        for (Map.Entry<String, List<Endpoint>> entry : domains.entrySet()) {
+            String domain = entry.getKey();
+            List<Endpoint> subdomains = new ArrayList<>();
+            for (Endpoint endpoint : entry.getValue()) {
+                if (endpoint.host.equals(domain)) {
+                    appendEntry(toml, endpoint.host, endpoint);
+                } else {
+                    subdomains.add(endpoint);
+                }
+            }
+            if (subdomains.size() > 1) {
+                appendEntry(toml, "*." + domain, subdomains.toArray(new Endpoint[0]));
+            } else if (subdomains.size() == 1) {
+                appendEntry(toml, subdomains.get(0).host, subdomains.get(0));
+            }
+        }
+        toml.append("    ]\n    ip = [\n");
+        for (Endpoint endpoint : addresses) {
+            appendEntry(toml, endpoint.host, endpoint);
+        }
+        toml.append("    ]\n");
+        return toml.toString();
+    }
+
+    @SuppressWarnings("UnstableApiUsage")
+    private static String getDomain(String host) {
+        if (InternetDomainName.isValid(host)) {
+            InternetDomainName name = InternetDomainName.from(host);
+            if (name.isUnderPublicSuffix()) {
+                return name.topPrivateDomain().toString();
+            }
+        }
+        return host;
+    }
+
+    private static void appendEntry(StringBuilder toml, String pattern, Endpoint... seen) {
+        TreeSet<String> hosts = new TreeSet<>();
+        TreeSet<Integer> ports = new TreeSet<>();
+        TreeSet<String> addresses = new TreeSet<>();
+        TreeSet<String> callers = new TreeSet<>();
+        long count = 0;
+        long first = Long.MAX_VALUE;
+        long last = 0;
+        for (Endpoint endpoint : seen) {
+            hosts.add(endpoint.host);
+            for (int port : endpoint.ports) {
+                ports.add(port);
+            }
+            addresses.addAll(Arrays.asList(endpoint.addresses));
+            if (endpoint.callers != null && !endpoint.callers.isEmpty()) {
+                callers.add(endpoint.callers);
+            }
+            count += endpoint.count.sum();
+            first = Math.min(first, endpoint.firstSeen);
+            last = Math.max(last, endpoint.lastSeen);
+        }
+        toml.append("        # ");
+        if (seen.length > 1) {
+            toml.append(String.join(", ", hosts)).append("; ");
+        }
+        toml.append("ports ").append(ports).append(", seen ").append(count).append(" times from ")
+                .append(Instant.ofEpochMilli(first)).append(" to ").append(Instant.ofEpochMilli(last)).append('\n');
+        if (!addresses.isEmpty()) {
+            toml.append("        # resolved ").append(String.join(", ", addresses)).append('\n');
+        }
+        for (String caller : callers) {
+            toml.append("        # caller ").append(caller).append('\n');
+        }
+        toml.append("        \"").append(pattern.replace("\\", "\\\\").replace("\"", "\\\"")).append("\",\n");
+    }
+
+    private static final class Endpoint {
+        private final String host;
+        private final boolean isIP;
+        private final String callers;
+        private final long firstSeen;
+        private volatile long lastSeen;
+        private final LongAdder count = new LongAdder();
+        // copy on write, a host is connected on few ports and resolves to few addresses
+        private volatile int[] ports = new int[0];
+        private volatile String[] addresses = new String[0];
+
+        private Endpoint(String host, boolean isIP, String callers, long now) {
+            this.host = host;
+            this.isIP = isIP;
+            this.callers = callers;
+            this.firstSeen = now;
+            this.lastSeen = now;
+        }
+
+        private void record(int port, long now) {
+            count.increment();
+            if (now - lastSeen >= SEEN_GRANULARITY) {
+                lastSeen = now;
+            }
+            // -1 is a lookup, not a connection
+            if (port != -1 && !contains(ports, port)) {
+                addPort(port);
+            }
+        }
+
+        private synchronized void addPort(int port) {
+            int[] current = ports;
+            if (!contains(current, port) && current.length < MAX_PORTS) {
+                int[] grown = Arrays.copyOf(current, current.length + 1);
+                grown[current.length] = port;
+                ports = grown;
+            }
+        }
+
+        private void addAddress(String address) {
+            for (String known : addresses) {
+                if (known.equals(address)) {
+                    return;
+                }
+            }
+            synchronized (this) {
+                String[] current = addresses;
+                if (!Arrays.asList(current).contains(address) && current.length < MAX_ADDRESSES) {
+                    String[] grown = Arrays.copyOf(current, current.length + 1);
+                    grown[current.length] = address;
+                    addresses = grown;
+                }
+            }
+        }
+
+        private static boolean contains(int[] values, int value) {
+            for (int v : values) {
+                if (v == value) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,284 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Structured audit log, written apart from the human readable log.
+ * Checking threads only claim a slot of a bounded ring buffer, when it is full the event is dropped and counted.
+ * One background thread drains it, merges identical events of a window and appends them as JSON lines.
+ * */
+final class AuditSink implements Runnable {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    final boolean enabled;
+    private final AtomicReferenceArray<Event> ring;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // only written by the draining thread
+    private volatile long head;
+    private final LongAdder dropped = new LongAdder();
+    private final long windowNanos;
+    private final Map<Event, Aggregate> window = new HashMap<>();
+    private Writer writer;
+    private volatile boolean stopped;
+
+    AuditSink(boolean enabled, int capacity, int windowSeconds) {
+        this.enabled = enabled;
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.ring = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.windowNanos = TimeUnit.SECONDS.toNanos(Math.max(windowSeconds, 1));
+    }
+
+    /**
+     * @param callers sampled as for URL, null when not sampled
+     */
+    void connect(String host, int port, Verdict verdict, String callers, String mod) {
+        if (enabled) {
+            offer(new Event("connect", host, port, verdict.name(), callers, mod, System.currentTimeMillis()));
+        }
+    }
+
+    void url(String url, String actions, String callers, String mod) {
+        if (enabled) {
+            offer(new Event("url", url, -1, actions, callers, mod, System.currentTimeMillis()));
+        }
+    }
+
+    private void offer(Event event) {
+        long slot;
+        do {
+            slot = tail.get();
+            if (slot - head >= ring.length()) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(slot, slot + 1));
+        ring.lazySet((int) (slot & mask), event);
+    }
+
+    /**
+     * Append to the file from a daemon thread, remaining events are written at shutdown
+     */
+    void start(Path file) {
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            writer = new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND), 1 << 16);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to open audit log {}", file, e);
+            return;
+        }
+        Thread thread = new DaemonThreadFactory("NoConnect-Audit").newThread(this);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            stopped = true;
+            LockSupport.unpark(thread);
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(2));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "NoConnect-Audit-Shutdown"));
+        LOGGER.debug("Writing audit log to {}", file);
+    }
+
+    @Override
+    public void run() {
+        long windowStart = System.nanoTime();
+        long reportedDrops = 0;
+        while (!stopped) {
+            int drained = drain();
+            long now = System.nanoTime();
+            if (now - windowStart >= windowNanos) {
+                reportedDrops = flush(reportedDrops);
+                windowStart = now;
+            }
+            if (drained == 0) {
+                LockSupport.parkNanos(this, IDLE_NANOS);
+            }
+        }
+        drain();
+        flush(reportedDrops);
+        try {
+            writer.close();
+        } catch (IOException e) {
+            LOGGER.warn("Unable to close audit log", e);
+        }
+    }
+
+    private int drain() {
+        int count = 0;
+        long h = head;
+        while (true) {
+            int index = (int) (h & mask);
+            Event event = ring.get(index);
+            if (event == null) {
+                // empty, or claimed but not yet published
+                break;
+            }
+            ring.lazySet(index, null);
+            h++;
+            head = h;
+            count++;
+            Aggregate aggregate = window.get(event);
+            if (aggregate == null) {
+                window.put(event, new Aggregate(event.time));
+            } else {
+                aggregate.add(event.time);
+            }
+        }
+        return count;
+    }
+
+    private long flush(long reportedDrops) {
+        long drops = dropped.sum();
+        if (window.isEmpty() && drops == reportedDrops) {
+            return reportedDrops;
+        }
+        StringBuilder line = new StringBuilder(256);
+        try {
+            for (Map.Entry<Event, Aggregate> entry : window.entrySet()) {
+                line.setLength(0);
+                entry.getKey().appendTo(line, entry.getValue());
+                writer.write(line.append('\n').toString());
+            }
+            if (drops != reportedDrops) {
+                writer.write("{\"type\":\"dropped\",\"time\":" + System.currentTimeMillis()
+                        + ",\"count\":" + (drops - reportedDrops) + "}\n");
+                LOGGER.warn("Audit log is behind, dropped {} events", drops - reportedDrops);
+            }
+            writer.flush();
+        } catch (IOException e) {
+            LOGGER.warn("Unable to write audit log", e);
+        }
+        window.clear();
+        return drops;
+    }
+
+    private static void appendString(StringBuilder builder, String value) {
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        builder.append('"');
+    }
+
+    /*
+     * Identity of an event is everything but its time.
+     * */
+    private static final class Event {
+        private final String type;
+        private final String target;
+        private final int port;
+        private final String detail;
+        private final String callers;
+        private final String mod;
+        private final long time;
+
+        private Event(String type, String target, int port, String detail, String callers, String mod, long time) {
+            this.type = type;
+            this.target = target;
+            this.port = port;
+            this.detail = detail;
+            this.callers = callers;
+            this.mod = mod;
+            this.time = time;
+        }
+
+        private void appendTo(StringBuilder line, Aggregate aggregate) {
+            line.append("{\"type\":\"").append(type).append("\",\"time\":").append(aggregate.first);
+            if (aggregate.count > 1) {
+                line.append(",\"last\":").append(aggregate.last);
+            }
+            if ("connect".equals(type)) {
+                line.append(",\"host\":");
+                appendString(line, target);
+                line.append(",\"port\":").append(port).append(",\"verdict\":\"").append(detail).append('"');
+            } else {
+                line.append(",\"url\":");
+                appendString(line, target);
+                line.append(",\"actions\":");
+                appendString(line, detail);
+            }
+            if (callers != null) {
+                line.append(",\"caller\":");
+                appendString(line, callers);
+            }
+            if (mod != null) {
+                line.append(",\"mod\":");
+                appendString(line, mod);
+            }
+            line.append(",\"count\":").append(aggregate.count).append('}');
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Event)) {
+                return false;
+            }
+            Event event = (Event) o;
+            return port == event.port && type.equals(event.type) && target.equals(event.target)
+                    && detail.equals(event.detail) && Objects.equals(callers, event.callers)
+                    && Objects.equals(mod, event.mod);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = target.hashCode();
+            hash = 31 * hash + port;
+            hash = 31 * hash + detail.hashCode();
+            hash = 31 * hash + Objects.hashCode(callers);
+            return 31 * hash + Objects.hashCode(mod);
+        }
+    }
+
+    private static final class Aggregate {
+        private final long first;
+        private long last;
+        private long count = 1;
+
+        private Aggregate(long time) {
+            this.first = time;
+            this.last = time;
+        }
+
+        private void add(long time) {
+            last = Math.max(last, time);
+            count++;
+        }
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Finds the classes that most likely requested a URL from the class context of a check.
+ * Only the top MAX_DEPTH frames are examined, and the result is memoized per call site
+ * (the identity of those frames), so a repeated call site costs a hash and a table probe.
+ * */
+final class CallerAttribution {
+    static final int MAX_DEPTH = 24;
+    private static final int CONNECT = 0;
+    private static final int CALLER_COUNT = 4;
+    // direct mapped memo, a colliding call site replaces the older one
+    private static final int MEMO_SIZE = 1024;
+
+    private static final String HTTPS_IMPL = "sun.net.www.protocol.https.HttpsURLConnectionImpl";
+    private static final String HTTP_IMPL = "sun.net.www.protocol.http.HttpURLConnection";
+
+    private final AtomicReferenceArray<CallSite> memo = new AtomicReferenceArray<>(MEMO_SIZE);
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * @return true for 1 in sampleRate requests
+     */
+    boolean shouldSample(int sampleRate) {
+        return sampleRate <= 1 || requests.getAndIncrement() % sampleRate == 0;
+    }
+
+    /**
+     * @return possible callers, nearest first, joined with " <- "
+     */
+    String attribute(Class<?>[] classContext, String protocol) {
+        return attribute(classContext, "https".equals(protocol) ? 1 : "http".equals(protocol) ? 2 : 3);
+    }
+
+    /**
+     * @return callers of a connection without URL, as getConnectCaller, memoized per call site
+     */
+    String attributeConnect(Class<?>[] classContext) {
+        return attribute(classContext, CONNECT);
+    }
+
+    private String attribute(Class<?>[] classContext, int kind) {
+        int depth = Math.min(classContext.length, MAX_DEPTH);
+        int hash = kind;
+        for (int i = 0; i < depth; i++) {
+            hash = 31 * hash + System.identityHashCode(classContext[i]);
+        }
+        int index = (hash ^ (hash >>> 16)) & (MEMO_SIZE - 1);
+        CallSite site = memo.get(index);
+        if (site != null && site.matches(kind, classContext, depth)) {
+            return site.callers;
+        }
+        String callers;
+        if (kind == CONNECT) {
+            callers = getConnectCaller(classContext);
+        } else if (kind == 1) {
+            callers = getHTTPSCaller(classContext, depth);
+        } else if (kind == 2) {
+            callers = getHTTPCaller(classContext, depth);
+        } else {
+            callers = getGenericCaller(classContext, depth);
+        }
+        Class<?>[] frames = new Class<?>[depth];
+        System.arraycopy(classContext, 0, frames, 0, depth);
+        memo.set(index, new CallSite(kind, frames, callers));
+        return callers;
+    }
+
+    /**
+     * @return true if a class named className is in the first maxDepth frames
+     */
+    static boolean isCalledFrom(Class<?>[] classContext, String className, int maxDepth) {
+        int depth = Math.min(maxDepth, classContext.length - 1);
+        for (int i = 0; i < depth; i++) {
+            if (className.equals(classContext[i].getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the nearest classes outside the JDK and NoConnect, for a connection without URL
+     */
+    static String getConnectCaller(Class<?>[] classContext) {
+        StringBuilder callers = new StringBuilder();
+        int depth = Math.min(classContext.length, MAX_DEPTH);
+        for (int i = 0, count = 0; i < depth && count < CALLER_COUNT; i++) {
+            String currentClass = classContext[i].getName();
+            if (isPlatformClass(currentClass) || currentClass.startsWith("noconnect.")) {
+                continue;
+            }
+            append(callers, currentClass);
+            count++;
+        }
+        return callers.toString();
+    }
+
+    private static boolean isPlatformClass(String className) {
+        return className.startsWith("java.") || className.startsWith("javax.") || className.startsWith("sun.")
+                || className.startsWith("jdk.") || className.startsWith("com.sun.");
+    }
+
+    private static String getHTTPSCaller(Class<?>[] classContext, int depth) {
+        /*
+         * The last element is the class that called, default get first 4 from caller
+         * Ex: class ExampleHTTPSPackage.TargetClass
+         *     class Main <-- class that call target
+         * */
+        StringBuilder callers = new StringBuilder();
+        boolean hasHTTPS = false;
+        for (int i = 0, count = 0; i < depth && count < CALLER_COUNT; i++) {
+            String currentClass = classContext[i].getName();
+
+            if (!hasHTTPS) {
+                hasHTTPS = HTTPS_IMPL.equals(currentClass);
+                continue;
+            }
+            append(callers, currentClass);
+            count++;
+        }
+        return callers.toString();
+    }
+
+    private static String getHTTPCaller(Class<?>[] classContext, int depth) {
+        //same as getHTTPSCaller except for http display
+        StringBuilder callers = new StringBuilder();
+        boolean hasHTTP = false;
+        for (int i = 0, count = 0; i < depth && count < CALLER_COUNT; i++) {
+            String currentClass = classContext[i].getName();
+
+            if (!hasHTTP) {
+                String nextClass = classContext[Math.min(i + 1, classContext.length - 1)].getName();
+                boolean targetHTTP = HTTP_IMPL.equals(currentClass);
+                boolean isNextSameHTTP = HTTP_IMPL.equals(nextClass);
+                hasHTTP = targetHTTP && !isNextSameHTTP;
+                continue;
+            }
+            append(callers, currentClass);
+            count++;
+        }
+        return callers.toString();
+    }
+
+    private static String getGenericCaller(Class<?>[] classContext, int depth) {
+        // non web URL, unable to tell the caller, keep all examined frames
+        StringBuilder callers = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            append(callers, classContext[i].getName());
+        }
+        return callers.toString();
+    }
+
+    private static void append(StringBuilder callers, String className) {
+        if (callers.length() > 0) {
+            callers.append(" <- ");
+        }
+        callers.append(className);
+    }
+
+    private static final class CallSite {
+        private final int kind;
+        private final Class<?>[] frames;
+        private final String callers;
+
+        private CallSite(int kind, Class<?>[] frames, String callers) {
+            this.kind = kind;
+            this.frames = frames;
+            this.callers = callers;
+        }
+
+        private boolean matches(int kind, Class<?>[] classContext, int depth) {
+            if (this.kind != kind || frames.length != depth) {
+                return false;
+            }
+            for (int i = 0; i < depth; i++) {
+                if (frames[i] != classContext[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+}
@@ -8,6 +8,7 @@ import com.electronwill.nightconfig.core.CommentedConfig;
 import com.electronwill.nightconfig.core.ConfigSpec;
 import com.electronwill.nightconfig.core.EnumGetMethod;
 import com.electronwill.nightconfig.core.UnmodifiableCommentedConfig.CommentNode;
+import com.electronwill.nightconfig.core.UnmodifiableConfig;
 import com.electronwill.nightconfig.core.file.CommentedFileConfig;
 import com.electronwill.nightconfig.core.io.IndentStyle;
 import com.electronwill.nightconfig.core.io.ParsingException;
@@ -25,13 +26,16 @@ import java.nio.file.StandardCopyOption;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static java.util.Arrays.asList;
 import static java.util.Collections.unmodifiableList;
 
 final class Config {
 
-    private static CommentedFileConfig config;
+    private static volatile CommentedFileConfig config;
+    // content of the loaded file, a reload of the same content is skipped
+    private static volatile long fingerprint;
     private static final ConfigSpec cfgSpec;
     private static final Logger LOGGER = LogManager.getLogger();
     private static final List<String> ALLOW_HOSTS = unmodifiableList(
@@ -48,22 +52,36 @@ final class Config {
         cfgSpec.define("enable", true, o -> o instanceof Boolean);
         cfgSpec.define("allow_dns", true, o -> o instanceof Boolean);
         cfgSpec.defineRestrictedEnum("log_type", LogType.class, asList(LogType.values()), EnumGetMethod.NAME, () -> LogType.INFO);
+        cfgSpec.defineRestrictedEnum("enforcement", Enforcement.class, asList(Enforcement.values()), EnumGetMethod.NAME, () -> Enforcement.SECURITY_MANAGER);
         cfgSpec.define("audit_mode", false, o -> o instanceof Boolean);
         cfgSpec.define("log_caller", false, o -> o instanceof Boolean);
+        cfgSpec.define("log_caller_sample", 1, o -> o instanceof Integer && (Integer) o >= 1);
+        cfgSpec.define("hot_reload", true, o -> o instanceof Boolean);
         cfgSpec.defineList("allowed.hosts", ALLOW_HOSTS, o -> (o instanceof String));
         cfgSpec.defineList("allowed.ip", Collections.emptyList(), o -> (o instanceof String));
         cfgSpec.defineList("allowed.thread", ALLOW_THREAD, o -> (o instanceof String));
+        cfgSpec.defineList("allowed.url", Collections.emptyList(), o -> (o instanceof String));
+        cfgSpec.define("cache.max_size", 4096, o -> o instanceof Integer && (Integer) o > 0);
+        cfgSpec.define("cache.ttl", -1, o -> o instanceof Integer && (Integer) o >= -1);
+        cfgSpec.define("cache.verdict_ttl", 5, o -> o instanceof Integer && (Integer) o >= 0);
+        cfgSpec.define("cache.preresolve", true, o -> o instanceof Boolean);
+        cfgSpec.define("cache.persistent", false, o -> o instanceof Boolean);
+        cfgSpec.define("audit_log.enable", false, o -> o instanceof Boolean);
+        cfgSpec.define("audit_log.window", 10, o -> o instanceof Integer && (Integer) o > 0);
+        cfgSpec.define("audit_log.buffer_size", 8192, o -> o instanceof Integer && (Integer) o > 0);
+        cfgSpec.define("metrics.enable", true, o -> o instanceof Boolean);
+        cfgSpec.define("metrics.summary_interval", 600, o -> o instanceof Integer && (Integer) o >= 0);
+        cfgSpec.define("denylist.enable", false, o -> o instanceof Boolean);
+        cfgSpec.defineList("rate_limit.hosts", Collections.emptyList(), o -> (o instanceof String));
+        cfgSpec.defineList("rate_limit.mods", Collections.emptyList(), o -> (o instanceof String));
+        cfgSpec.define("mods", com.electronwill.nightconfig.core.Config::inMemory, Config::isModTable);
         com.electronwill.nightconfig.core.Config.setInsertionOrderPreserved(isPreserved);
     }
 
     static void loadConfig(Path configPath) {
         boolean isPreserved = com.electronwill.nightconfig.core.Config.isInsertionOrderPreserved();
         com.electronwill.nightconfig.core.Config.setInsertionOrderPreserved(true);
-        config = CommentedFileConfig
-                .builder(configPath, TomlFormat.instance())
-                .preserveInsertionOrder()
-                .sync()
-                .build();
+        config = buildConfig(configPath);
 
         try {
             config.load();
@@ -75,6 +93,7 @@ final class Config {
             config.load();
         }
 
+        // a valid config is left as written, comments are only generated for a corrected one
         if (!cfgSpec.isCorrect(config)) {
             LOGGER.warn("Correcting Config File!");
             makeConfigBackup(false);
@@ -82,28 +101,142 @@ final class Config {
                 LOGGER.warn("Action:{} Path:{} Wrong:{} Corrected:{}", action, path, incorrectValue, correctedValue);
             });
             config.putAllComments(generateConfigComment());
+            saveConfig(config);
         }
-
-        saveConfig(config);
+        fingerprint = fingerprint(configPath);
         com.electronwill.nightconfig.core.Config.setInsertionOrderPreserved(isPreserved);
     }
 
+    /**
+     * Read the config again without correcting or rewriting it, the loaded config is kept if the file is invalid.
+     *
+     * @return true if the config was replaced
+     */
+    static boolean reloadConfig(Path configPath) {
+        long current = fingerprint(configPath);
+        if (current == fingerprint) {
+            // saved without changes, or only its modification time changed
+            LOGGER.debug("Config file is unchanged, keeping current config");
+            return false;
+        }
+        boolean isPreserved = com.electronwill.nightconfig.core.Config.isInsertionOrderPreserved();
+        com.electronwill.nightconfig.core.Config.setInsertionOrderPreserved(true);
+        try {
+            CommentedFileConfig reloaded = buildConfig(configPath);
+            try {
+                reloaded.load();
+            } catch (ParsingException e) {
+                LOGGER.error("Encounter invalid config file, keeping current config:\n", e);
+                return false;
+            }
+            if (!cfgSpec.isCorrect(reloaded)) {
+                LOGGER.error("Config file has invalid entries, keeping current config");
+                return false;
+            }
+            config = reloaded;
+            fingerprint = current;
+            return true;
+        } finally {
+            com.electronwill.nightconfig.core.Config.setInsertionOrderPreserved(isPreserved);
+        }
+    }
+
+    /**
+     * @return FNV-1a of the content of the file, 0 if it cannot be read
+     */
+    private static long fingerprint(Path configPath) {
+        byte[] content;
+        try {
+            content = Files.readAllBytes(configPath);
+        } catch (IOException e) {
+            return 0;
+        }
+        long hash = 0xCBF29CE484222325L;
+        for (byte b : content) {
+            hash = (hash ^ (b & 0xFF)) * 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    private static CommentedFileConfig buildConfig(Path configPath) {
+        return CommentedFileConfig
+                .builder(configPath, TomlFormat.instance())
+                .preserveInsertionOrder()
+                .sync()
+                .build();
+    }
+
     static List<String> getAllowedHosts() {
         return config.getOrElse("allowed.hosts", ALLOW_HOSTS);
     }
 
     static List<String> getAllowedIPs() {
-        return config.getOrElse("allowed.ips", Collections::emptyList);
+        return config.getOrElse("allowed.ip", Collections::emptyList);
+    }
+
+    static List<String> getAllowedUrls() {
+        return config.getOrElse("allowed.url", Collections::emptyList);
     }
 
     static List<String> getAllowedThread() {
         return config.getOrElse("allowed.thread", ALLOW_THREAD);
     }
 
+    static List<String> getHostRateLimits() {
+        return config.getOrElse("rate_limit.hosts", Collections::emptyList);
+    }
+
+    static List<String> getModRateLimits() {
+        return config.getOrElse("rate_limit.mods", Collections::emptyList);
+    }
+
+    static Set<String> getMods() {
+        UnmodifiableConfig mods = config.getOrElse("mods", (UnmodifiableConfig) null);
+        return mods == null ? Collections.emptySet() : mods.valueMap().keySet();
+    }
+
+    static List<String> getModHosts(String mod) {
+        return config.getOrElse("mods." + mod + ".hosts", Collections::emptyList);
+    }
+
+    static List<String> getModIPs(String mod) {
+        return config.getOrElse("mods." + mod + ".ip", Collections::emptyList);
+    }
+
+    /*
+     * [mods.modid] tables of "hosts" and "ip" string lists
+     * */
+    private static boolean isModTable(Object mods) {
+        if (!(mods instanceof UnmodifiableConfig)) {
+            return false;
+        }
+        for (Object mod : ((UnmodifiableConfig) mods).valueMap().values()) {
+            if (!(mod instanceof UnmodifiableConfig)) {
+                return false;
+            }
+            for (Map.Entry<String, Object> entries : ((UnmodifiableConfig) mod).valueMap().entrySet()) {
+                boolean known = "hosts".equals(entries.getKey()) || "ip".equals(entries.getKey());
+                if (!known || !(entries.getValue() instanceof List)) {
+                    return false;
+                }
+                for (Object entry : (List<?>) entries.getValue()) {
+                    if (!(entry instanceof String)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
     static LogType getMode() {
         return config.getEnumOrElse("log_type", LogType.INFO, EnumGetMethod.NAME);
     }
 
+    static Enforcement getEnforcement() {
+        return config.getEnumOrElse("enforcement", Enforcement.SECURITY_MANAGER, EnumGetMethod.NAME);
+    }
+
     static boolean isAuditMode() {
         return config.getOrElse("audit_mode", false);
     }
@@ -112,14 +245,73 @@ final class Config {
         return config.getOrElse("log_caller", true);
     }
 
+    static int getLogCallerSample() {
+        return config.getOrElse("log_caller_sample", 1);
+    }
+
     static boolean isEnabled() {
-        return config.getOrElse("enabled", true);
+        return config.getOrElse("enable", true);
     }
 
     static boolean allowAllDns() {
         return config.getOrElse("allow_dns", true);
     }
 
+    static boolean isHotReload() {
+        return config.getOrElse("hot_reload", true);
+    }
+
+    static int getCacheMaxSize() {
+        return config.getOrElse("cache.max_size", 4096);
+    }
+
+    static int getCacheTtl() {
+        return config.getOrElse("cache.ttl", -1);
+    }
+
+    static int getVerdictTtl() {
+        return config.getOrElse("cache.verdict_ttl", 5);
+    }
+
+    static boolean isPreResolve() {
+        return config.getOrElse("cache.preresolve", true);
+    }
+
+    static boolean isPersistentCache() {
+        return config.getOrElse("cache.persistent", false);
+    }
+
+    static boolean isDenylist() {
+        return config.getOrElse("denylist.enable", false);
+    }
+
+    /**
+     * @return config/noconnect/lists, the folder of the deny lists
+     */
+    static Path getListsDir() {
+        return config.getNioPath().resolveSibling("noconnect").resolve("lists");
+    }
+
+    static boolean isAuditLogEnabled() {
+        return config.getOrElse("audit_log.enable", false);
+    }
+
+    static int getAuditLogWindow() {
+        return config.getOrElse("audit_log.window", 10);
+    }
+
+    static int getAuditLogBufferSize() {
+        return config.getOrElse("audit_log.buffer_size", 8192);
+    }
+
+    static boolean isMetricsEnabled() {
+        return config.getOrElse("metrics.enable", true);
+    }
+
+    static int getMetricsSummaryInterval() {
+        return config.getOrElse("metrics.summary_interval", 600);
+    }
+
     private static Map<String, CommentNode> generateConfigComment() {
         boolean isPreserved = com.electronwill.nightconfig.core.Config.isInsertionOrderPreserved();
         com.electronwill.nightconfig.core.Config.setInsertionOrderPreserved(true);
@@ -139,6 +331,13 @@ final class Config {
         cfgMain.setComment("log_type", "Logging visibility. \n" +
                 "Valid options are MINIMAL, INFO, VERBOSE, NONE");
 
+        cfgMain.set("enforcement", "");
+        cfgMain.setComment("enforcement", "How connections are checked. Changes require a restart. \n" +
+                "SECURITY_MANAGER checks every connection of the JVM, but also slows down unrelated operations. \n" +
+                "TRANSFORMER checks the network calls made by game and mod classes, without a security manager. \n" +
+                "It also works when the JVM disallows a security manager (Java 18+), \n" +
+                "but calls made inside libraries (ie, netty) are not checked.");
+
         cfgMain.set("audit_mode", "");
         cfgMain.setComment("audit_mode", "Allow all connections without disabling.\n" +
                 "Useful for troubleshooting");
@@ -146,26 +345,130 @@ final class Config {
         cfgMain.set("log_caller", "");
         cfgMain.setComment("log_caller", "Show possible classes that made connection.");
 
+        cfgMain.set("log_caller_sample", "");
+        cfgMain.setComment("log_caller_sample", "Show possible classes for 1 in N URL requests, \n" +
+                "and for 1 in N connections of the audit log. 1 shows them for every request.");
+
+        cfgMain.set("hot_reload", "");
+        cfgMain.setComment("hot_reload", "Apply changes of this file without restarting. \n" +
+                "log_type and cache changes still require a restart.");
+
         CommentedConfig cfgAllowed = cfgMain.createSubConfig();
 
         cfgAllowed.set("hosts", "");
         cfgAllowed.setComment("hosts", "Hosts that are allowed to connect. \n" +
                 "Mojang/Minecraft host are allowed by default. \n" +
-                "Use \"*.\" to allow wildcard match of host; *.example.com allows test.example.com");
+                "Use \"*.\" to allow wildcard match of host; *.example.com allows test.example.com \n" +
+                "Add \":port\" to allow only that port; api.example.com:443 \n" +
+                "Add a scheme to allow only URL of that scheme, on its default port; https://api.example.com");
 
         cfgAllowed.set("ip", "");
         cfgAllowed.setComment("ip", "The IP that are allowed to connect. \n" +
-                "Example of IP: 127.0.0.1");
+                "Example of IP: 127.0.0.1 \n" +
+                "CIDR blocks and ranges are allowed; 10.0.0.0/8, 2001:db8::/32, 192.168.1.10-192.168.1.20 \n" +
+                "Add \":port\" to allow only that port, IPv6 in brackets; 10.0.0.0/8:25565, [2001:db8::]/32:443");
 
         cfgAllowed.set("thread", "");
         cfgAllowed.setComment("thread", "Thread that exempted from blocking. \n" +
                 "When excluding thread, you can allow multiple similar threads, \n" +
                 "Example: Chunk Thread #1, Chunk Thread #2, only add \"Chunk Thread\" here.");
 
+        cfgAllowed.set("url", "");
+        cfgAllowed.setComment("url", "URL that HTTP requests may use, as \"[METHODS] scheme://host/path\". \n" +
+                "A host listed here only allows requests to its listed paths and the ones below them, \n" +
+                "the host itself must still be allowed above. \n" +
+                "Example: GET,POST https://api.example.com/v1/profile allows /v1/profile/name but not /telemetry");
+
         cfgMain.add("allowed", cfgAllowed);
         cfgMain.setComment("allowed", "Values below is exempted from blocking,\n" +
                 "Please check the Host/IP before adding to this category.\n" +
                 "NOTE -- Invalid entries will reset the configuration to default values!");
+
+        CommentedConfig cfgCache = cfgMain.createSubConfig();
+
+        cfgCache.set("max_size", "");
+        cfgCache.setComment("max_size", "Maximum resolved IP of allowed hosts kept in cache. \n" +
+                "Least recently used IP are removed when it is full.");
+
+        cfgCache.set("ttl", "");
+        cfgCache.setComment("ttl", "Seconds a resolved IP stays in cache. \n" +
+                "-1 follows the JVM DNS cache TTL (networkaddress.cache.ttl, 30 if unset).");
+
+        cfgCache.set("verdict_ttl", "");
+        cfgCache.setComment("verdict_ttl", "Seconds the result of checking a host and port is reused. \n" +
+                "Repeated denials are logged once a minute. 0 disables.");
+
+        cfgCache.set("preresolve", "");
+        cfgCache.setComment("preresolve", "Resolve allowed hosts in background at startup, \n" +
+                "and refresh them before the cached IP expire.");
+
+        cfgCache.set("persistent", "");
+        cfgCache.setComment("persistent", "Keep resolved IP in config/noconnect/resolution.bin for the next start, \n" +
+                "shared by servers started from the same folder. Changes require a restart. \n" +
+                "A resolved IP is kept in the file for at least an hour, restored for at most the ttl above.");
+
+        cfgMain.add("cache", cfgCache);
+        cfgMain.setComment("cache", "Cache of IP resolved from allowed hosts.");
+
+        CommentedConfig cfgAudit = cfgMain.createSubConfig();
+
+        cfgAudit.set("enable", "");
+        cfgAudit.setComment("enable", "Write checked hosts and URL to logs/noconnect-audit.jsonl, one JSON object per line. \n" +
+                "A connection is keyed by host, port, verdict and caller, an URL by url, actions and caller; \n" +
+                "the caller is only set with log_caller, for sampled checks. It does not depend on log_type.");
+
+        cfgAudit.set("window", "");
+        cfgAudit.setComment("window", "Seconds identical events are merged into one line with a count.");
+
+        cfgAudit.set("buffer_size", "");
+        cfgAudit.setComment("buffer_size", "Events waiting to be written, events are dropped and counted when it is full.");
+
+        cfgMain.add("audit_log", cfgAudit);
+        cfgMain.setComment("audit_log", "Structured log of the checks. Changes require a restart.");
+
+        CommentedConfig cfgMetrics = cfgMain.createSubConfig();
+
+        cfgMetrics.set("enable", "");
+        cfgMetrics.setComment("enable", "Count checks and their time, shown by JMX as noconnect:type=Metrics.");
+
+        cfgMetrics.set("summary_interval", "");
+        cfgMetrics.setComment("summary_interval", "Seconds between summary lines in the log. 0 disables.");
+
+        cfgMain.add("metrics", cfgMetrics);
+        cfgMain.setComment("metrics", "Statistics of NoConnect checks. Changes require a restart.");
+
+        CommentedConfig cfgDeny = cfgMain.createSubConfig();
+
+        cfgDeny.set("enable", "");
+        cfgDeny.setComment("enable", "Allow every host except the ones in the lists of config/noconnect/lists. \n" +
+                "A list is a hosts file or one domain per line, a listed domain also denies its subdomains. \n" +
+                "The allowed category and mods still apply, allowed hosts are never denied.");
+
+        cfgMain.add("denylist", cfgDeny);
+        cfgMain.setComment("denylist", "Deny listed hosts instead of allowing listed hosts. \n" +
+                "Lists are compiled into config/noconnect/lists.bin when they change.");
+
+        CommentedConfig cfgRate = cfgMain.createSubConfig();
+
+        cfgRate.set("hosts", "");
+        cfgRate.setComment("hosts", "Connections allowed per host, as \"<host> <burst> <per minute>\". \n" +
+                "Each host matched by the pattern has its own budget; \"*.example.com 10 60\" \n" +
+                "allows 10 connections at once, then 1 per second.");
+
+        cfgRate.set("mods", "");
+        cfgRate.setComment("mods", "Connections allowed per mod, as \"<modid> <burst> <per minute>\".");
+
+        cfgMain.add("rate_limit", cfgRate);
+        cfgMain.setComment("rate_limit", "Limits apply to allowed and denied connections by host name, localhost excluded. \n" +
+                "Connections over the limit fail without being checked further.");
+
+        cfgMain.set("mods", "");
+        cfgMain.setComment("mods", "Mods restricted to their own hosts and IP, the allowed category does not apply to them. \n" +
+                "A mod is found by the classes that made the connection. Example: \n" +
+                "[mods.examplemod] \n" +
+                "    hosts = [\"cdn.example.com\"] \n" +
+                "    ip = [] \n" +
+                "Listing a mod with empty lists blocks all its connections.");
         return cfgMain.getComments();
     }
 
@@ -196,4 +499,8 @@ final class Config {
         MINIMAL, INFO, VERBOSE, NONE
     }
 
+    enum Enforcement {
+        SECURITY_MANAGER, TRANSFORMER
+    }
+
 }
@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/*
+ * Reloads noconnect.toml when it changes on disk and publishes the compiled policy.
+ * Runs on its own daemon thread, checks keep using the previous policy until the new one is complete.
+ * */
+final class ConfigWatcher implements Runnable {
+    private static final Logger LOGGER = LogManager.getLogger();
+    // editors may write a file several times when saving, wait for it to settle
+    private static final long SETTLE_MILLIS = 500;
+
+    private final Path configPath;
+    private final WatchService watchService;
+
+    private ConfigWatcher(Path configPath, WatchService watchService) {
+        this.configPath = configPath;
+        this.watchService = watchService;
+    }
+
+    static void start(Path configPath) {
+        try {
+            WatchService watchService = FileSystems.getDefault().newWatchService();
+            configPath.toAbsolutePath().getParent().register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+            Thread thread = new Thread(new ConfigWatcher(configPath, watchService), "NoConnect-ConfigWatcher");
+            thread.setDaemon(true);
+            thread.start();
+            LOGGER.debug("Watching {} for changes", configPath);
+        } catch (IOException | UnsupportedOperationException e) {
+            LOGGER.warn("Unable to watch config for changes, restart to apply config changes", e);
+        }
+    }
+
+    @Override
+    public void run() {
+        Path fileName = configPath.getFileName();
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    changed |= fileName.equals(event.context());
+                }
+                if (changed) {
+                    // drain the burst of events from a single save
+                    do {
+                        key.reset();
+                        key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                        if (key != null) {
+                            key.pollEvents();
+                        }
+                    } while (key != null);
+                    reload();
+                } else {
+                    key.reset();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            LOGGER.debug("Stopped watching {}", configPath);
+        }
+    }
+
+    private void reload() {
+        try {
+            if (Config.reloadConfig(configPath)) {
+                Policy previous = Policy.get();
+                Policy policy = Policy.compile();
+                Policy.publish(policy);
+                if (previous != null && previous.logType != policy.logType) {
+                    LOGGER.warn("log_type change will be applied on next restart");
+                }
+                LOGGER.info("Reloaded NoConnect config, policy version {}", policy.version);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Unable to reload NoConnect config, keeping the current policy", e);
+        }
+    }
+
+}
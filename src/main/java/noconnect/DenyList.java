@@ -0,0 +1,252 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+/*
+ * Hosts denied by the lists in config/noconnect/lists, hosts files or one domain per line.
+ * The lists are compiled once into lists.bin next to them: the sorted 64 bit hashes of every listed domain,
+ * hashed from its last character to its first, and read back through a memory mapping.
+ * Hashing the name backwards yields the hash of every parent domain of a host in a single pass,
+ * each is then a binary search in the mapping; the heap holds nothing whatever the size of the lists.
+ * */
+final class DenyList {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int MAGIC = 0x4E43444C; // NCDL
+    private static final int VERSION = 2;
+    // magic, version, fingerprint of the lists, count, padding to align the hashes
+    private static final int HEADER_SIZE = 24;
+    private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+    private static final List<String> LOCAL_NAMES = Arrays.asList(
+            "localhost", "localhost.localdomain", "local", "broadcasthost", "ip6-localhost", "ip6-loopback", "0.0.0.0");
+
+    private final LongBuffer hashes;
+
+    private DenyList(LongBuffer hashes) {
+        this.hashes = hashes;
+    }
+
+    /**
+     * @return the compiled lists of the folder, compiling them again if they changed since
+     */
+    static DenyList open(Path listsDir) {
+        long start = System.nanoTime();
+        Path index = listsDir.resolveSibling("lists.bin");
+        try {
+            Files.createDirectories(listsDir);
+            List<Path> lists = getLists(listsDir);
+            long fingerprint = fingerprint(lists);
+            LongBuffer hashes = map(index, fingerprint);
+            if (hashes == null) {
+                Path compiled = compile(lists, index, fingerprint);
+                hashes = map(compiled, fingerprint);
+            }
+            LOGGER.info("Denying {} listed domains of {} lists in {}ms", hashes == null ? 0 : hashes.capacity(),
+                    lists.size(), (System.nanoTime() - start) / 1_000_000);
+            return new DenyList(hashes == null ? LongBuffer.allocate(0) : hashes);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Unable to load the deny lists of {}, nothing is denied by them", listsDir, e);
+            return new DenyList(LongBuffer.allocate(0));
+        }
+    }
+
+    /**
+     * @return true if the host or one of its parent domains is listed
+     */
+    boolean matches(String host) {
+        int end = host.length();
+        // absolute name, "example.com."
+        if (end > 0 && host.charAt(end - 1) == '.') {
+            end--;
+        }
+        long hash = FNV_OFFSET;
+        for (int i = end - 1; i >= 0; i--) {
+            char c = host.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            hash = (hash ^ c) * FNV_PRIME;
+            // a label starts here, the hash so far is the one of this parent domain
+            if ((i == 0 || host.charAt(i - 1) == '.') && contains(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int size() {
+        return hashes.capacity();
+    }
+
+    private boolean contains(long hash) {
+        int low = 0;
+        int high = hashes.capacity() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long value = hashes.get(mid);
+            if (value < hash) {
+                low = mid + 1;
+            } else if (value > hash) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Path> getLists(Path listsDir) throws IOException {
+        List<Path> lists = new ArrayList<>();
+        try (Stream<Path> files = Files.list(listsDir)) {
+            files.filter(Files::isRegularFile).sorted().forEach(lists::add);
+        }
+        return lists;
+    }
+
+    // changes when a list is added, removed or modified
+    private static long fingerprint(List<Path> lists) throws IOException {
+        long hash = FNV_OFFSET;
+        for (Path list : lists) {
+            String id = list.getFileName() + ":" + Files.size(list) + ":" + Files.getLastModifiedTime(list).toMillis();
+            for (int i = 0; i < id.length(); i++) {
+                hash = (hash ^ id.charAt(i)) * FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @return the hashes of the index, null if it is missing or compiled from other lists
+     */
+    private static LongBuffer map(Path index, long fingerprint) throws IOException {
+        if (!Files.isRegularFile(index) || Files.size(index) < HEADER_SIZE) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(index, StandardOpenOption.READ)) {
+            // the mapping stays valid once the channel is closed
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int count = map.getInt(16);
+            if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION || map.getLong(8) != fingerprint
+                    || count < 0 || HEADER_SIZE + (long) count * 8 != channel.size()) {
+                return null;
+            }
+            map.position(HEADER_SIZE);
+            return map.slice().asLongBuffer();
+        }
+    }
+
+    private static Path compile(List<Path> lists, Path index, long fingerprint) throws IOException {
+        long[] hashes = new long[1024];
+        int count = 0;
+        for (Path list : lists) {
+            try (BufferedReader reader = Files.newBufferedReader(list, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    for (String domain : parseLine(line)) {
+                        if (count == hashes.length) {
+                            hashes = Arrays.copyOf(hashes, count * 2);
+                        }
+                        hashes[count++] = hash(domain);
+                    }
+                }
+            } catch (IOException e) {
+                // a list in another charset, the other lists are still used
+                LOGGER.warn("Unable to read deny list {}", list, e);
+            }
+        }
+        Arrays.sort(hashes, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || hashes[unique - 1] != hashes[i]) {
+                hashes[unique++] = hashes[i];
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + unique * 8);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(fingerprint).putInt(unique).putInt(0);
+        buffer.asLongBuffer().put(hashes, 0, unique);
+        Path temp = index.resolveSibling(index.getFileName() + ".tmp");
+        Files.write(temp, buffer.array());
+        try {
+            Files.move(temp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, index, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // mapped by another running server on Windows, this one uses the new copy
+            LOGGER.warn("Unable to replace {}, using {}", index, temp, e);
+            return temp;
+        }
+        LOGGER.info("Compiled {} listed domains into {}", unique, index);
+        return index;
+    }
+
+    /**
+     * "0.0.0.0 ads.example.com", "ads.example.com", "||ads.example.com^" and "# comments",
+     * "! comments" and the "[Adblock Plus 2.0]" header of adblock lists
+     */
+    private static List<String> parseLine(String line) {
+        int comment = line.indexOf('#');
+        if (comment >= 0) {
+            line = line.substring(0, comment);
+        }
+        line = line.trim();
+        if (line.isEmpty() || line.charAt(0) == '!' || line.charAt(0) == '[') {
+            return Collections.emptyList();
+        }
+        if (line.startsWith("||")) {
+            int end = line.indexOf('^');
+            line = end < 0 ? line.substring(2) : line.substring(2, end);
+        }
+        String[] tokens = line.split("\\s+");
+        List<String> domains = new ArrayList<>(1);
+        // hosts file, the address comes first
+        int first = tokens.length > 1 && HostAddress.parseLocal(tokens[0]).isIP() ? 1 : 0;
+        for (int i = first; i < tokens.length; i++) {
+            String domain = tokens[i].toLowerCase(Locale.ROOT);
+            if (domain.startsWith("*.")) {
+                domain = domain.substring(2);
+            }
+            if (domain.endsWith(".")) {
+                domain = domain.substring(0, domain.length() - 1);
+            }
+            if (!domain.isEmpty() && !LOCAL_NAMES.contains(domain) && domain.indexOf('/') < 0) {
+                domains.add(domain);
+            }
+        }
+        return domains;
+    }
+
+    // same hash as matches, from the last character to the first
+    private static long hash(String domain) {
+        long hash = FNV_OFFSET;
+        for (int i = domain.length() - 1; i >= 0; i--) {
+            hash = (hash ^ domain.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+}
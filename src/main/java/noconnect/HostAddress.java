@@ -0,0 +1,234 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/*
+ * IP literal parsed into primitive bits, without allocating.
+ * Accepts the same dotted quad and IPv6 forms as Guava InetAddresses#isInetAddress,
+ * IPv4 mapped IPv6 addresses are treated as IPv4 like InetAddress does, the scope of an IPv6 address is ignored.
+ * */
+final class HostAddress {
+    static final int NONE = 0;
+    static final int IPV4 = 4;
+    static final int IPV6 = 6;
+
+    // flag of scanIPv6 result when "::" is present
+    private static final int COMPRESSED = 0x100;
+    private static final ThreadLocal<HostAddress> PER_THREAD = ThreadLocal.withInitial(HostAddress::new);
+
+    int family = NONE;
+    int v4;
+    long hi;
+    long lo;
+
+    /**
+     * Parse into the instance of the current thread, valid until the next call on this thread
+     */
+    static HostAddress parseLocal(String host) {
+        HostAddress address = PER_THREAD.get();
+        address.parse(host);
+        return address;
+    }
+
+    boolean parse(CharSequence s) {
+        family = NONE;
+        if (parseIPv4(s, 0, s.length())) {
+            family = IPV4;
+        } else if (parseIPv6(s)) {
+            if (hi == 0 && (lo >>> 32) == 0xFFFFL) {
+                v4 = (int) lo;
+                family = IPV4;
+            } else {
+                family = IPV6;
+            }
+        }
+        return family != NONE;
+    }
+
+    boolean isIP() {
+        return family != NONE;
+    }
+
+    boolean isLoopback() {
+        return (family == IPV4 && (v4 >>> 24) == 127) || (family == IPV6 && hi == 0 && lo == 1);
+    }
+
+    InetAddress toInetAddress() throws UnknownHostException {
+        if (family == IPV4) {
+            return InetAddress.getByAddress(new byte[]{(byte) (v4 >>> 24), (byte) (v4 >>> 16), (byte) (v4 >>> 8), (byte) v4});
+        }
+        byte[] bytes = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (hi >>> (56 - i * 8));
+            bytes[i + 8] = (byte) (lo >>> (56 - i * 8));
+        }
+        return InetAddress.getByAddress(bytes);
+    }
+
+    private boolean parseIPv4(CharSequence s, int start, int end) {
+        int value = 0;
+        int octets = 0;
+        int i = start;
+        while (i <= end) {
+            int octet = 0;
+            int digits = 0;
+            for (; i < end && s.charAt(i) != '.'; i++) {
+                char c = s.charAt(i);
+                if (c < '0' || c > '9' || digits == 3) {
+                    return false;
+                }
+                octet = octet * 10 + (c - '0');
+                digits++;
+            }
+            // no empty octet, no leading zero
+            if (digits == 0 || octet > 255 || (digits > 1 && s.charAt(i - digits) == '0')) {
+                return false;
+            }
+            value = (value << 8) | octet;
+            octets++;
+            if (i == end) {
+                break;
+            }
+            if (octets == 4) {
+                return false;
+            }
+            i++; // skip '.'
+        }
+        if (octets != 4) {
+            return false;
+        }
+        v4 = value;
+        return true;
+    }
+
+    private boolean parseIPv6(CharSequence s) {
+        // first pass validates and counts the groups, the second fills the bits with "::" expanded
+        int scanned = scanIPv6(s, -1);
+        if (scanned < 0) {
+            return false;
+        }
+        int groups = scanned & 0xFF;
+        boolean compressed = (scanned & COMPRESSED) != 0;
+        if (compressed ? groups > 7 : groups != 8) {
+            return false;
+        }
+        hi = 0;
+        lo = 0;
+        scanIPv6(s, compressed ? 8 - groups : 0);
+        return true;
+    }
+
+    /**
+     * @param fill zero groups emitted at "::", -1 to only validate
+     * @return group count, with COMPRESSED set if "::" is present, or -1 if invalid
+     */
+    private int scanIPv6(CharSequence s, int fill) {
+        int len = scopeStart(s);
+        if (len < 0) {
+            return -1;
+        }
+        int count = 0;
+        boolean compressed = false;
+        int i = 0;
+        if (len >= 2 && s.charAt(0) == ':' && s.charAt(1) == ':') {
+            compressed = true;
+            emitZeros(fill);
+            i = 2;
+            if (i == len) {
+                return COMPRESSED;
+            }
+        }
+        while (count <= 8) {
+            int start = i;
+            int group = 0;
+            for (; i < len && s.charAt(i) != ':'; i++) {
+                char c = s.charAt(i);
+                if (c == '.') {
+                    // dotted quad takes the last two groups
+                    if (!parseIPv4(s, start, len)) {
+                        return -1;
+                    }
+                    if (fill >= 0) {
+                        emit(v4 >>> 16);
+                        emit(v4 & 0xFFFF);
+                    }
+                    count += 2;
+                    return compressed ? count | COMPRESSED : count;
+                }
+                int digit = hexDigit(c);
+                if (digit < 0 || i - start == 4) {
+                    return -1;
+                }
+                group = (group << 4) | digit;
+            }
+            if (i == start) {
+                return -1;
+            }
+            if (fill >= 0) {
+                emit(group);
+            }
+            count++;
+            if (i == len) {
+                return compressed ? count | COMPRESSED : count;
+            }
+            i++; // skip ':'
+            if (i == len) {
+                return -1;
+            }
+            if (s.charAt(i) == ':') {
+                if (compressed) {
+                    return -1;
+                }
+                compressed = true;
+                emitZeros(fill);
+                i++;
+                if (i == len) {
+                    return count | COMPRESSED;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return where the "%scope" suffix of a scoped address starts, its length if unscoped, -1 if the scope is empty
+     */
+    private static int scopeStart(CharSequence s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == '%') {
+                return i == s.length() - 1 ? -1 : i;
+            }
+        }
+        return s.length();
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private void emitZeros(int groups) {
+        for (int g = 0; g < groups; g++) {
+            emit(0);
+        }
+    }
+
+    private void emit(int group) {
+        hi = (hi << 16) | (lo >>> 48);
+        lo = (lo << 16) | group;
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Compiled form of "allowed.hosts", a trie of domain labels stored from the last label to the first.
+ * "*.example.com" and "example.com" share the path com -> example, one is flagged wildcard, the other exact.
+ * Answers the same as NetworkUtil#matchesHostname over every pattern, without allocating on lookup.
+ * */
+final class HostMatcher {
+
+    private final Node root;
+
+    private HostMatcher(Node root) {
+        this.root = root;
+    }
+
+    static HostMatcher compile(Collection<String> patterns) {
+        Builder root = new Builder();
+        for (String pattern : patterns) {
+            boolean wildcard = pattern.startsWith("*.");
+            // "*.example.com" matches any host ending with ".example.com", keep the labels after "*."
+            String name = wildcard ? pattern.substring(2) : pattern;
+            Builder node = root;
+            int end = name.length();
+            while (true) {
+                int start = name.lastIndexOf('.', end - 1) + 1;
+                node = node.children.computeIfAbsent(name.substring(start, end), k -> new Builder());
+                if (start == 0) {
+                    break;
+                }
+                end = start - 1;
+            }
+            if (wildcard) {
+                node.wildcard = true;
+            } else {
+                node.exact = true;
+            }
+        }
+        return new HostMatcher(root.build());
+    }
+
+    boolean matches(String host) {
+        Node node = root;
+        int end = host.length();
+        while (true) {
+            int start = host.lastIndexOf('.', end - 1) + 1;
+            node = node.child(host, start, end);
+            if (node == null) {
+                return false;
+            }
+            if (start == 0) {
+                return node.exact;
+            }
+            // there is a label left in front, so the host is a subdomain of this node
+            if (node.wildcard) {
+                return true;
+            }
+            end = start - 1;
+        }
+    }
+
+    private static int hash(String s, int start, int end) {
+        // same as String#hashCode over the region, so keys can be hashed once at compile time
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        return h;
+    }
+
+    private static final class Node {
+        private static final String[] NO_LABELS = new String[0];
+        private static final Node[] NO_NODES = new Node[0];
+
+        private final boolean exact;
+        private final boolean wildcard;
+        // open addressing table, length is a power of two or zero
+        private final String[] labels;
+        private final Node[] nodes;
+
+        private Node(boolean exact, boolean wildcard, String[] labels, Node[] nodes) {
+            this.exact = exact;
+            this.wildcard = wildcard;
+            this.labels = labels;
+            this.nodes = nodes;
+        }
+
+        private Node child(String host, int start, int end) {
+            if (labels.length == 0) {
+                return null;
+            }
+            int mask = labels.length - 1;
+            int len = end - start;
+            for (int i = mix(hash(host, start, end)) & mask; ; i = (i + 1) & mask) {
+                String label = labels[i];
+                if (label == null) {
+                    return null;
+                }
+                if (label.length() == len && host.regionMatches(start, label, 0, len)) {
+                    return nodes[i];
+                }
+            }
+        }
+
+        private static int mix(int h) {
+            return h ^ (h >>> 16);
+        }
+    }
+
+    private static final class Builder {
+        private final Map<String, Builder> children = new HashMap<>();
+        private boolean exact;
+        private boolean wildcard;
+
+        private Node build() {
+            if (children.isEmpty()) {
+                return new Node(exact, wildcard, Node.NO_LABELS, Node.NO_NODES);
+            }
+            // keep the table at most half full so probing stays short
+            int size = Integer.highestOneBit(children.size() * 2 - 1) << 1;
+            String[] labels = new String[size];
+            Node[] nodes = new Node[size];
+            int mask = size - 1;
+            for (Map.Entry<String, Builder> entry : children.entrySet()) {
+                String label = entry.getKey();
+                int i = Node.mix(label.hashCode()) & mask;
+                while (labels[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                labels[i] = label;
+                nodes[i] = entry.getValue().build();
+            }
+            return new Node(exact, wildcard, labels, nodes);
+        }
+    }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/*
+ * Resolves allowed hosts into the ResolutionCache.
+ * Configured hosts are resolved in the background at startup and refreshed before their IP expire,
+ * hosts matched by a wildcard are refreshed for as long as they keep being checked.
+ * A host is queried by one thread at a time, the others wait for its answer, failures are cached too.
+ * */
+final class HostResolver {
+    private static final Logger LOGGER = LogManager.getLogger();
+    // refresh when this much of the TTL has passed
+    private static final double REFRESH_RATIO = 0.8;
+    private static final int THREADS = 2;
+
+    private final ResolutionCache cache;
+    private final Metrics metrics;
+    // InetAddress#getAllByName, null if the host does not resolve
+    private final Function<String, InetAddress[]> lookup;
+    private final ThreadLocal<Boolean> resolving = ThreadLocal.withInitial(() -> Boolean.FALSE);
+    private final ConcurrentHashMap<String, ScheduledFuture<?>> refreshing = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<InetAddress[]>> inflight = new ConcurrentHashMap<>();
+    private volatile ScheduledExecutorService executor;
+    private volatile ResolutionFile file;
+
+    HostResolver(ResolutionCache cache, Metrics metrics, Function<String, InetAddress[]> lookup) {
+        this.cache = cache;
+        this.metrics = metrics;
+        this.lookup = lookup;
+    }
+
+    /**
+     * @return true if the current thread is resolving, the nested checkConnect of InetAddress should pass
+     */
+    boolean isResolving() {
+        return resolving.get();
+    }
+
+    /**
+     * Resolve on the calling thread, InetAddress will invoke checkConnect again.
+     * Joins the query of another thread already resolving the host.
+     *
+     * @return the addresses of the host, empty if it does not resolve
+     */
+    InetAddress[] resolve(String host) {
+        return resolve(host, false);
+    }
+
+    /**
+     * @param refresh query even if the cached answer has not expired
+     */
+    private InetAddress[] resolve(String host, boolean refresh) {
+        CompletableFuture<InetAddress[]> query = new CompletableFuture<>();
+        CompletableFuture<InetAddress[]> running = inflight.putIfAbsent(host, query);
+        if (running != null) {
+            LOGGER.trace("Waiting for resolution of {}", host);
+            return running.join();
+        }
+        try {
+            // answered by a query that completed after the caller found the host unresolved
+            InetAddress[] ip = refresh ? null : cache.getAddresses(host);
+            if (ip == null) {
+                ip = query(host);
+            }
+            query.complete(ip);
+            return ip;
+        } catch (RuntimeException | Error e) {
+            query.completeExceptionally(e);
+            throw e;
+        } finally {
+            inflight.remove(host, query);
+        }
+    }
+
+    private InetAddress[] query(String host) {
+        LOGGER.trace("Resolving Host - {}", host);
+        resolving.set(Boolean.TRUE);
+        InetAddress[] ip;
+        long start = System.nanoTime();
+        try {
+            ip = lookup.apply(host);
+        } finally {
+            resolving.set(Boolean.FALSE);
+            metrics.recordDns(System.nanoTime() - start);
+        }
+        if (ip == null) {
+            cache.markUnresolved(host);
+            LOGGER.debug("Unable to resolve {}", host);
+            return new InetAddress[0];
+        }
+        for (InetAddress addr : ip) {
+            if (cache.put(addr.getHostAddress(), host)) {
+                LOGGER.debug("Allowed {}/{} into cache", host, addr.getHostAddress());
+            }
+        }
+        cache.markResolved(host, ip);
+        LOGGER.trace("IP cache {}", cache);
+        store(host, ip);
+        scheduleRefresh(host);
+        return ip;
+    }
+
+    /**
+     * Restore the hosts resolved by earlier runs, then keep the file up to date
+     */
+    void load(ResolutionFile file) {
+        file.load(Policy.get(), cache);
+        this.file = file;
+    }
+
+    private void store(String host, InetAddress[] ip) {
+        ResolutionFile target = file;
+        if (target == null) {
+            return;
+        }
+        ScheduledExecutorService pool = executor;
+        if (pool != null) {
+            pool.execute(() -> target.append(host, ip, cache.getTtlNanos()));
+        } else {
+            target.append(host, ip, cache.getTtlNanos());
+        }
+    }
+
+    /**
+     * Resolve every configured host in the background, then keep them fresh
+     */
+    void start() {
+        ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(THREADS, new DaemonThreadFactory("NoConnect-Resolver"));
+        pool.setRemoveOnCancelPolicy(true);
+        executor = pool;
+        preResolve(Policy.get());
+    }
+
+    /**
+     * Resolve the hosts of a new policy once started, called by URLSecMgr after its caches are cleared
+     */
+    void onPolicy(Policy policy) {
+        if (executor != null) {
+            preResolve(policy);
+        }
+    }
+
+    private void preResolve(Policy policy) {
+        ScheduledExecutorService pool = executor;
+        // hosts dropped from the config are no longer refreshed
+        refreshing.forEach((host, task) -> {
+            if (!policy.allowedHosts.matches(host)) {
+                task.cancel(false);
+                refreshing.remove(host, task);
+            }
+        });
+        for (String host : policy.exactHosts) {
+            if (!cache.isResolved(host)) {
+                pool.execute(() -> resolve(host));
+            }
+        }
+        LOGGER.debug("Pre-resolving {} allowed hosts", policy.exactHosts.size());
+    }
+
+    private void scheduleRefresh(String host) {
+        ScheduledExecutorService pool = executor;
+        long period = (long) (cache.getTtlNanos() * REFRESH_RATIO);
+        if (pool == null || period <= 0 || refreshing.containsKey(host)) {
+            return;
+        }
+        ScheduledFuture<?> task = pool.scheduleAtFixedRate(() -> refresh(host), period, period, TimeUnit.NANOSECONDS);
+        if (refreshing.putIfAbsent(host, task) != null) {
+            task.cancel(false);
+        }
+    }
+
+    private void refresh(String host) {
+        Policy policy = Policy.get();
+        boolean keep = policy.allowedHosts.matches(host)
+                && (policy.exactHosts.contains(host) || cache.takeUsed(host));
+        if (!keep) {
+            ScheduledFuture<?> task = refreshing.remove(host);
+            if (task != null) {
+                task.cancel(false);
+            }
+            LOGGER.trace("Stopped refreshing {}", host);
+            return;
+        }
+        resolve(host, true);
+    }
+
+}
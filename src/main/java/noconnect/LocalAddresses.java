@@ -0,0 +1,204 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Addresses of the network interfaces of this host, a lookup of one of them (HttpClient, port -1) is local.
+ * Read from NetworkInterface rather than by resolving the host name, and read again on a schedule as
+ * interfaces come and go (VPN, Docker bridges, DHCP). A refresh builds new tables and swaps them in with
+ * one volatile write; a lookup probes an open addressing table with the bits of the already parsed address.
+ * */
+final class LocalAddresses {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final long REFRESH_SECONDS = 30;
+
+    private volatile Index index = new Index(new int[0], new long[0]);
+
+    LocalAddresses() {
+        refresh();
+    }
+
+    boolean contains(HostAddress address) {
+        Index current = index;
+        if (address.family == HostAddress.IPV4) {
+            return current.containsV4(address.v4);
+        }
+        return address.family == HostAddress.IPV6 && current.containsV6(address.hi, address.lo);
+    }
+
+    /**
+     * Read the interfaces again every 30 seconds
+     */
+    void start() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+                new DaemonThreadFactory("NoConnect-Interfaces"));
+        executor.scheduleWithFixedDelay(this::refresh, REFRESH_SECONDS, REFRESH_SECONDS, TimeUnit.SECONDS);
+    }
+
+    void refresh() {
+        List<InetAddress> addresses = new ArrayList<>();
+        // NetworkInterface checks each address with checkConnect once installed, every refresh
+        ThreadTrust.runInternal(() -> {
+            try {
+                Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+                for (NetworkInterface networkInterface : interfaces == null
+                        ? Collections.<NetworkInterface>emptyList() : Collections.list(interfaces)) {
+                    addresses.addAll(Collections.list(networkInterface.getInetAddresses()));
+                }
+            } catch (SocketException | RuntimeException e) {
+                LOGGER.error("Error while reading the network interfaces, keeping {} known addresses", index, e);
+                addresses.clear();
+            }
+        });
+        if (addresses.isEmpty()) {
+            return;
+        }
+        Index updated = Index.build(addresses);
+        if (!updated.equals(index)) {
+            LOGGER.debug("Local addresses are now {}", addresses);
+            index = updated;
+        }
+    }
+
+    private static final class Index {
+        // 0 marks an empty slot, 0.0.0.0 and :: are never the address of an interface
+        private final int[] v4;
+        private final long[] v6;
+
+        private Index(int[] v4, long[] v6) {
+            this.v4 = v4;
+            this.v6 = v6;
+        }
+
+        private static Index build(List<InetAddress> addresses) {
+            int v4Count = 0;
+            for (InetAddress address : addresses) {
+                if (address instanceof Inet4Address) {
+                    v4Count++;
+                }
+            }
+            int[] v4 = new int[tableSize(v4Count)];
+            // hi and lo of each address side by side
+            long[] v6 = new long[tableSize(addresses.size() - v4Count) * 2];
+            for (InetAddress address : addresses) {
+                ByteBuffer bytes = ByteBuffer.wrap(address.getAddress());
+                if (address instanceof Inet4Address) {
+                    insertV4(v4, bytes.getInt());
+                } else if (address instanceof Inet6Address) {
+                    insertV6(v6, bytes.getLong(), bytes.getLong());
+                }
+            }
+            return new Index(v4, v6);
+        }
+
+        // at most half full, a miss ends on an empty slot quickly
+        private static int tableSize(int count) {
+            return Integer.highestOneBit(Math.max(count, 1)) << 2;
+        }
+
+        private static void insertV4(int[] table, int address) {
+            if (address == 0) {
+                return;
+            }
+            int mask = table.length - 1;
+            int slot = mix(address) & mask;
+            while (table[slot] != 0 && table[slot] != address) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = address;
+        }
+
+        private static void insertV6(long[] table, long hi, long lo) {
+            if (hi == 0 && lo == 0) {
+                return;
+            }
+            int mask = table.length / 2 - 1;
+            int slot = mix(hi, lo) & mask;
+            while ((table[slot * 2] != 0 || table[slot * 2 + 1] != 0)
+                    && (table[slot * 2] != hi || table[slot * 2 + 1] != lo)) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot * 2] = hi;
+            table[slot * 2 + 1] = lo;
+        }
+
+        private boolean containsV4(int address) {
+            if (v4.length == 0 || address == 0) {
+                return false;
+            }
+            int mask = v4.length - 1;
+            for (int slot = mix(address) & mask; v4[slot] != 0; slot = (slot + 1) & mask) {
+                if (v4[slot] == address) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean containsV6(long hi, long lo) {
+            if (v6.length == 0 || (hi == 0 && lo == 0)) {
+                return false;
+            }
+            int mask = v6.length / 2 - 1;
+            for (int slot = mix(hi, lo) & mask; v6[slot * 2] != 0 || v6[slot * 2 + 1] != 0; slot = (slot + 1) & mask) {
+                if (v6[slot * 2] == hi && v6[slot * 2 + 1] == lo) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static int mix(int value) {
+            int h = value * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        private static int mix(long hi, long lo) {
+            long h = (hi ^ Long.rotateLeft(lo, 32)) * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Index && Arrays.equals(v4, ((Index) o).v4) && Arrays.equals(v6, ((Index) o).v6);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(v4) + Arrays.hashCode(v6);
+        }
+
+        @Override
+        public String toString() {
+            int count = 0;
+            for (int address : v4) {
+                count += address != 0 ? 1 : 0;
+            }
+            for (int i = 0; i < v6.length; i += 2) {
+                count += v6[i] != 0 || v6[i + 1] != 0 ? 1 : 0;
+            }
+            return String.valueOf(count);
+        }
+    }
+
+}
@@ -0,0 +1,355 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Counters of the checks made by URLSecMgr, without turning on verbose logging.
+ * Recording is a few striped adder increments, the per-host counters stop adding hosts at MAX_HOSTS.
+ * */
+final class Metrics implements NoConnectMetricsMBean {
+    private static final Logger LOGGER = LogManager.getLogger("NoConnect");
+    private static final String OBJECT_NAME = "noconnect:type=Metrics";
+    private static final int MAX_HOSTS = 1024;
+    private static final int TOP_HOSTS = 10;
+
+    final boolean enabled;
+    private final ResolutionCache cache;
+    private final LongAdder[] verdicts = new LongAdder[Verdict.values().length];
+    private final ConcurrentHashMap<String, LongAdder> hosts = new ConcurrentHashMap<>();
+    private final LongAdder otherHosts = new LongAdder();
+    private final Histogram connect = new Histogram();
+    private final Histogram permission = new Histogram();
+    private final Histogram dns = new Histogram();
+    private long lastSummaryChecks;
+
+    Metrics(boolean enabled, ResolutionCache cache) {
+        this.enabled = enabled;
+        this.cache = cache;
+        for (int i = 0; i < verdicts.length; i++) {
+            verdicts[i] = new LongAdder();
+        }
+    }
+
+    void recordConnect(Verdict verdict, String host, long nanos) {
+        if (!enabled) {
+            return;
+        }
+        verdicts[verdict.ordinal()].increment();
+        connect.record(nanos);
+        LongAdder count = hosts.get(host);
+        if (count == null) {
+            if (hosts.size() >= MAX_HOSTS) {
+                otherHosts.increment();
+                return;
+            }
+            count = hosts.computeIfAbsent(host, h -> new LongAdder());
+        }
+        count.increment();
+    }
+
+    void recordPermission(long nanos) {
+        if (enabled) {
+            permission.record(nanos);
+        }
+    }
+
+    void recordDns(long nanos) {
+        if (enabled) {
+            dns.record(nanos);
+        }
+    }
+
+    /**
+     * Register the MBean and log a summary every intervalSeconds, 0 only registers
+     */
+    void start(int intervalSeconds) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new StandardMBean(this, NoConnectMetricsMBean.class), new ObjectName(OBJECT_NAME));
+        } catch (JMException | SecurityException e) {
+            LOGGER.warn("Unable to register {}", OBJECT_NAME, e);
+        }
+        if (intervalSeconds > 0) {
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+                    new DaemonThreadFactory("NoConnect-Metrics"));
+            executor.scheduleAtFixedRate(this::logSummary, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    private void logSummary() {
+        long checks = connect.count.sum() + permission.count.sum();
+        // nothing new to report
+        if (checks == lastSummaryChecks) {
+            return;
+        }
+        lastSummaryChecks = checks;
+        LOGGER.info(summary());
+    }
+
+    @Override
+    public String summary() {
+        StringBuilder builder = new StringBuilder("Metrics - connect: ");
+        connect.appendTo(builder);
+        builder.append(", permission: ");
+        permission.appendTo(builder);
+        builder.append(", dns: ");
+        dns.appendTo(builder);
+        builder.append(", verdicts:");
+        for (Verdict verdict : Verdict.values()) {
+            builder.append(' ').append(verdict).append('=').append(verdicts[verdict.ordinal()].sum());
+        }
+        builder.append(", cache: ").append(cache);
+        String[] top = getTopHosts();
+        if (top.length > 0) {
+            builder.append(", top hosts: ").append(String.join(" ", top));
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder verdict : verdicts) {
+            verdict.reset();
+        }
+        hosts.clear();
+        otherHosts.reset();
+        connect.reset();
+        permission.reset();
+        dns.reset();
+        lastSummaryChecks = 0;
+    }
+
+    @Override
+    public String[] getTopHosts() {
+        List<Map.Entry<String, Long>> counts = new ArrayList<>(hosts.size());
+        hosts.forEach((host, count) -> counts.add(new AbstractMap.SimpleImmutableEntry<>(host, count.sum())));
+        counts.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        int size = Math.min(TOP_HOSTS, counts.size());
+        long other = otherHosts.sum();
+        String[] top = new String[other > 0 ? size + 1 : size];
+        for (int i = 0; i < size; i++) {
+            top[i] = counts.get(i).getKey() + "=" + counts.get(i).getValue();
+        }
+        if (other > 0) {
+            top[size] = "(untracked)=" + other;
+        }
+        return top;
+    }
+
+    @Override
+    public long getLoopbackCount() {
+        return verdicts[Verdict.LOOPBACK.ordinal()].sum();
+    }
+
+    @Override
+    public long getCachedIPCount() {
+        return verdicts[Verdict.CACHED_IP.ordinal()].sum();
+    }
+
+    @Override
+    public long getAllowedIPCount() {
+        return verdicts[Verdict.ALLOWED_IP.ordinal()].sum();
+    }
+
+    @Override
+    public long getAllowedThreadCount() {
+        return verdicts[Verdict.ALLOWED_THREAD.ordinal()].sum();
+    }
+
+    @Override
+    public long getAllowedHostCount() {
+        return verdicts[Verdict.ALLOWED_HOST.ordinal()].sum();
+    }
+
+    @Override
+    public long getAllowedModCount() {
+        return verdicts[Verdict.ALLOWED_MOD.ordinal()].sum();
+    }
+
+    @Override
+    public long getUnlistedCount() {
+        return verdicts[Verdict.UNLISTED.ordinal()].sum();
+    }
+
+    @Override
+    public long getAuditCount() {
+        return verdicts[Verdict.AUDIT.ordinal()].sum();
+    }
+
+    @Override
+    public long getDnsCount() {
+        return verdicts[Verdict.DNS.ordinal()].sum();
+    }
+
+    @Override
+    public long getDeniedCount() {
+        return verdicts[Verdict.DENIED.ordinal()].sum();
+    }
+
+    @Override
+    public long getRateLimitedCount() {
+        return verdicts[Verdict.RATE_LIMITED.ordinal()].sum();
+    }
+
+    @Override
+    public long getConnectChecks() {
+        return connect.count.sum();
+    }
+
+    @Override
+    public long getConnectMeanNanos() {
+        return connect.mean();
+    }
+
+    @Override
+    public long getConnectP99Nanos() {
+        return connect.percentile(0.99);
+    }
+
+    @Override
+    public long getConnectMaxNanos() {
+        return connect.max.get();
+    }
+
+    @Override
+    public long getPermissionChecks() {
+        return permission.count.sum();
+    }
+
+    @Override
+    public long getPermissionMeanNanos() {
+        return permission.mean();
+    }
+
+    @Override
+    public long getPermissionP99Nanos() {
+        return permission.percentile(0.99);
+    }
+
+    @Override
+    public long getPermissionMaxNanos() {
+        return permission.max.get();
+    }
+
+    @Override
+    public long getDnsLookups() {
+        return dns.count.sum();
+    }
+
+    @Override
+    public long getDnsMeanNanos() {
+        return dns.mean();
+    }
+
+    @Override
+    public long getDnsP99Nanos() {
+        return dns.percentile(0.99);
+    }
+
+    @Override
+    public long getDnsMaxNanos() {
+        return dns.max.get();
+    }
+
+    @Override
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cache.hitCount();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cache.missCount();
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        return cache.evictionCount();
+    }
+
+    /*
+     * Log2 buckets of nanoseconds, bucket i holds values below 2^i.
+     * */
+    private static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        private void record(long nanos) {
+            buckets[Math.min(64 - Long.numberOfLeadingZeros(nanos), 63)].increment();
+            count.increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        private long mean() {
+            long n = count.sum();
+            return n == 0 ? 0 : total.sum() / n;
+        }
+
+        private long percentile(double p) {
+            long n = count.sum();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(n * p);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i].sum();
+                if (seen >= rank) {
+                    return Math.min(1L << i, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        private void appendTo(StringBuilder builder) {
+            builder.append(count.sum()).append(" (mean ").append(mean())
+                    .append("ns, p50 ").append(percentile(0.5))
+                    .append("ns, p99 ").append(percentile(0.99))
+                    .append("ns, max ").append(max.get()).append("ns)");
+        }
+
+        private void reset() {
+            for (LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+            count.reset();
+            total.reset();
+            max.reset();
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import net.minecraftforge.fml.loading.FMLLoader;
+import net.minecraftforge.fml.loading.LoadingModList;
+import net.minecraftforge.fml.loading.moddiscovery.ModFileInfo;
+import net.minecraftforge.forgespi.language.IModInfo;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Attributes a check to the mod of the nearest class that is not a JDK, library or NoConnect class.
+ * The CodeSource of a class is read once and memoized by ClassValue, which does not keep the classes of
+ * an unloaded class loader alive; the mod of a location is memoized too, as a mod jar holds many classes.
+ * After warm-up a frame costs a ClassValue read and a map read.
+ * */
+final class ModAttribution {
+    private static final Logger LOGGER = LogManager.getLogger();
+    // not a class of a mod, the walk continues
+    private static final String NONE = "";
+
+    private final ClassValue<String> locations = new ClassValue<String>() {
+        @Override
+        protected String computeValue(Class<?> type) {
+            return getLocation(type);
+        }
+    };
+    private final ConcurrentHashMap<String, String> mods = new ConcurrentHashMap<>();
+    private volatile List<ModFile> modFiles;
+
+    /**
+     * Walks the whole class context: a mod below Netty, an HTTP client or event dispatch frames
+     * would otherwise fall back to the global rules and escape its own.
+     *
+     * @return the mod ID of the nearest mod class, null if no mod class is on the stack
+     */
+    String getMod(Class<?>[] classContext) {
+        for (Class<?> type : classContext) {
+            String location = locations.get(type);
+            if (location == NONE) {
+                continue;
+            }
+            String mod = mods.get(location);
+            if (mod == null) {
+                mod = findMod(location);
+            }
+            // null until FML lists the mods
+            if (mod != null && mod != NONE) {
+                return mod;
+            }
+        }
+        return null;
+    }
+
+    private static String getLocation(Class<?> type) {
+        String name = type.getName();
+        if (type.getClassLoader() == null || name.startsWith("noconnect.") || name.startsWith("java.")
+                || name.startsWith("javax.") || name.startsWith("sun.") || name.startsWith("jdk.")
+                || name.startsWith("com.sun.")) {
+            return NONE;
+        }
+        CodeSource source = type.getProtectionDomain().getCodeSource();
+        URL location = source == null ? null : source.getLocation();
+        if (location == null) {
+            return NONE;
+        }
+        String url = location.toString();
+        // modjar://modid/path/of/Class.class, the host is the mod ID
+        if ("modjar".equals(location.getProtocol())) {
+            return "modjar:" + location.getHost();
+        }
+        // jar:file:/mods/example.jar!/path/of/Class.class
+        if (url.startsWith("jar:")) {
+            int separator = url.indexOf("!/");
+            return separator < 0 ? url.substring(4) : url.substring(4, separator);
+        }
+        return url;
+    }
+
+    /**
+     * @return the mod ID of the location, NONE if no mod file contains it, or null while FML has no mod list
+     */
+    private String findMod(String location) {
+        if (location.startsWith("modjar:")) {
+            String mod = location.substring("modjar:".length());
+            mods.putIfAbsent(location, mod);
+            return mod;
+        }
+        List<ModFile> files = getModFiles();
+        if (files == null) {
+            // not cached, it is looked up again once mods are discovered
+            return null;
+        }
+        Path path;
+        try {
+            path = Paths.get(new URI(location)).toAbsolutePath().normalize();
+        } catch (URISyntaxException | IllegalArgumentException | FileSystemNotFoundException e) {
+            mods.putIfAbsent(location, NONE);
+            return NONE;
+        }
+        // a mod file is a jar, or a folder of classes in a development environment
+        String mod = NONE;
+        for (ModFile file : files) {
+            if (path.startsWith(file.path)) {
+                mod = file.modId;
+                break;
+            }
+        }
+        mods.putIfAbsent(location, mod);
+        return mod;
+    }
+
+    private List<ModFile> getModFiles() {
+        List<ModFile> files = modFiles;
+        if (files != null) {
+            return files;
+        }
+        LoadingModList modList;
+        try {
+            modList = FMLLoader.getLoadingModList();
+        } catch (LinkageError e) {
+            return null;
+        }
+        if (modList == null) {
+            return null;
+        }
+        files = new ArrayList<>();
+        for (ModFileInfo info : modList.getModFiles()) {
+            List<IModInfo> infos = info.getMods();
+            if (!infos.isEmpty()) {
+                files.add(new ModFile(info.getFile().getFilePath().toAbsolutePath().normalize(), infos.get(0).getModId()));
+            }
+        }
+        LOGGER.debug("Attributing connections to {} mod files", files.size());
+        modFiles = files;
+        return files;
+    }
+
+    private static final class ModFile {
+        private final Path path;
+        private final String modId;
+
+        private ModFile(Path path, String modId) {
+            this.path = path;
+            this.modId = modId;
+        }
+    }
+
+}
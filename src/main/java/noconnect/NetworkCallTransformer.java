@@ -0,0 +1,285 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import cpw.mods.modlauncher.api.ITransformer;
+import cpw.mods.modlauncher.api.ITransformerVotingContext;
+import cpw.mods.modlauncher.api.TransformerVoteResult;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import javax.annotation.Nonnull;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * TRANSFORMER enforcement, inserts a check before each network call of the targeted game and mod classes.
+ * The check copies the address argument from the operand stack and passes it to a helper added to the class,
+ * the helper hands it to the TransformerEngine, bound to a field of the class by its static initializer.
+ * Lookups through InetAddress are replaced by a second helper, the engine answers them from its own cache.
+ * The calls of the JDK and of libraries outside the game class loader are not transformed.
+ * */
+final class NetworkCallTransformer implements ITransformer<ClassNode> {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final String HELPER = "noconnect$check";
+    private static final String HELPER_DESC = "(Ljava/lang/Object;I)V";
+    private static final String LOOKUP = "noconnect$lookup";
+    private static final String LOOKUP_DESC = "(Ljava/lang/String;)[Ljava/net/InetAddress;";
+    private static final String ENGINE = "noconnect$engine";
+    private static final String ENGINE_DESC = "Ljava/lang/Object;";
+    private static final Map<String, Hook> HOOKS = new HashMap<>();
+
+    static {
+        for (String socket : new String[]{"java/net/Socket", "javax/net/ssl/SSLSocket"}) {
+            hook(socket, "connect", "(Ljava/net/SocketAddress;)V", Hook.TOP);
+            hook(socket, "connect", "(Ljava/net/SocketAddress;I)V", Hook.BELOW_1);
+            hook(socket, "<init>", "(Ljava/lang/String;I)V", Hook.WITH_PORT);
+            hook(socket, "<init>", "(Ljava/net/InetAddress;I)V", Hook.WITH_PORT);
+        }
+        hook("java/nio/channels/SocketChannel", "connect", "(Ljava/net/SocketAddress;)Z", Hook.TOP);
+        hook("java/nio/channels/SocketChannel", "open", "(Ljava/net/SocketAddress;)Ljava/nio/channels/SocketChannel;", Hook.TOP);
+        hook("java/net/DatagramSocket", "connect", "(Ljava/net/SocketAddress;)V", Hook.TOP);
+        hook("java/net/DatagramSocket", "connect", "(Ljava/net/InetAddress;I)V", Hook.WITH_PORT);
+        hook("java/net/DatagramSocket", "send", "(Ljava/net/DatagramPacket;)V", Hook.TOP);
+        hook("java/net/InetAddress", "getAllByName", "(Ljava/lang/String;)[Ljava/net/InetAddress;", Hook.LOOKUP_ALL);
+        hook("java/net/InetAddress", "getByName", "(Ljava/lang/String;)Ljava/net/InetAddress;", Hook.LOOKUP_FIRST);
+        // resolves in the constructor, the address is then connected as an IP
+        hook("java/net/InetSocketAddress", "<init>", "(Ljava/lang/String;I)V", Hook.BELOW_1);
+        hook("java/net/URL", "openConnection", "()Ljava/net/URLConnection;", Hook.TOP);
+        hook("java/net/URL", "openConnection", "(Ljava/net/Proxy;)Ljava/net/URLConnection;", Hook.BELOW_1);
+        hook("java/net/URL", "openStream", "()Ljava/io/InputStream;", Hook.TOP);
+        hook("java/net/http/HttpClient", "send",
+                "(Ljava/net/http/HttpRequest;Ljava/net/http/HttpResponse$BodyHandler;)Ljava/net/http/HttpResponse;",
+                Hook.REQUEST_BELOW_1);
+        hook("java/net/http/HttpClient", "sendAsync",
+                "(Ljava/net/http/HttpRequest;Ljava/net/http/HttpResponse$BodyHandler;)Ljava/util/concurrent/CompletableFuture;",
+                Hook.REQUEST_BELOW_1);
+        hook("java/net/http/HttpClient", "sendAsync",
+                "(Ljava/net/http/HttpRequest;Ljava/net/http/HttpResponse$BodyHandler;Ljava/net/http/HttpResponse$PushPromiseHandler;)Ljava/util/concurrent/CompletableFuture;",
+                Hook.REQUEST_BELOW_2);
+    }
+
+    private final Set<Target> targets;
+
+    NetworkCallTransformer(Set<Target> targets) {
+        this.targets = targets;
+    }
+
+    private static void hook(String owner, String name, String desc, Hook hook) {
+        HOOKS.put(owner + '.' + name + desc, hook);
+    }
+
+    @Nonnull
+    @Override
+    public ClassNode transform(ClassNode input, ITransformerVotingContext context) {
+        boolean isInterface = (input.access & Opcodes.ACC_INTERFACE) != 0;
+        // static methods of interfaces need class file version 52
+        if (isInterface && (input.version & 0xFFFF) < Opcodes.V1_8) {
+            return input;
+        }
+        int hooked = 0;
+        boolean lookups = false;
+        for (MethodNode method : input.methods) {
+            if (method.instructions == null) {
+                continue;
+            }
+            for (AbstractInsnNode insn : method.instructions.toArray()) {
+                if (!(insn instanceof MethodInsnNode)) {
+                    continue;
+                }
+                MethodInsnNode call = (MethodInsnNode) insn;
+                Hook hook = HOOKS.get(call.owner + '.' + call.name + call.desc);
+                if (hook == Hook.LOOKUP_ALL || hook == Hook.LOOKUP_FIRST) {
+                    method.instructions.insertBefore(call, lookup(input.name, hook, isInterface));
+                    method.instructions.remove(call);
+                    lookups = true;
+                    hooked++;
+                } else if (hook != null) {
+                    method.instructions.insertBefore(call, check(input.name, hook, isInterface));
+                    hooked++;
+                }
+            }
+        }
+        if (lookups) {
+            input.methods.add(lookupHelper(input.name, isInterface));
+        }
+        if (hooked > 0) {
+            input.methods.add(helper(input.name, isInterface));
+            bindEngine(input, isInterface);
+            LOGGER.debug("Checking {} network calls of {}", hooked, input.name);
+        }
+        return input;
+    }
+
+    private static InsnList check(String owner, Hook hook, boolean isInterface) {
+        InsnList check = new InsnList();
+        switch (hook) {
+            case TOP:
+                check.add(new InsnNode(Opcodes.DUP));
+                check.add(new InsnNode(Opcodes.ICONST_M1));
+                break;
+            case BELOW_1:
+            case REQUEST_BELOW_1:
+                // a b -> a b a
+                check.add(new InsnNode(Opcodes.DUP2));
+                check.add(new InsnNode(Opcodes.POP));
+                check.add(new InsnNode(Opcodes.ICONST_M1));
+                break;
+            case REQUEST_BELOW_2:
+                // a b c -> a b c a
+                check.add(new InsnNode(Opcodes.DUP2_X1));
+                check.add(new InsnNode(Opcodes.POP2));
+                check.add(new InsnNode(Opcodes.DUP_X2));
+                check.add(new InsnNode(Opcodes.ICONST_M1));
+                break;
+            case WITH_PORT:
+                check.add(new InsnNode(Opcodes.DUP2));
+                break;
+            default:
+                throw new IllegalArgumentException("Not a check " + hook);
+        }
+        if (hook == Hook.REQUEST_BELOW_1 || hook == Hook.REQUEST_BELOW_2) {
+            // the URI of the HttpRequest, replaces the request below the pushed -1
+            check.insertBefore(check.getLast(), new TypeInsnNode(Opcodes.CHECKCAST, "java/net/http/HttpRequest"));
+            check.insertBefore(check.getLast(), new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/net/http/HttpRequest",
+                    "uri", "()Ljava/net/URI;", false));
+        }
+        check.add(new MethodInsnNode(Opcodes.INVOKESTATIC, owner, HELPER, HELPER_DESC, isInterface));
+        return check;
+    }
+
+    /*
+     * Calls noconnect$lookup in place of the InetAddress method, the host is already on the stack
+     * */
+    private static InsnList lookup(String owner, Hook hook, boolean isInterface) {
+        InsnList lookup = new InsnList();
+        lookup.add(new MethodInsnNode(Opcodes.INVOKESTATIC, owner, LOOKUP, LOOKUP_DESC, isInterface));
+        if (hook == Hook.LOOKUP_FIRST) {
+            // getByName is the first address of getAllByName
+            lookup.add(new InsnNode(Opcodes.ICONST_0));
+            lookup.add(new InsnNode(Opcodes.AALOAD));
+        }
+        return lookup;
+    }
+
+    /*
+     * static final Object noconnect$engine = ManagementFactory.getPlatformMBeanServer()
+     *         .getAttribute(new ObjectName("noconnect:type=Engine"), "Engine");
+     * Prepended to the static initializer, the engine is bound once and cannot be swapped afterwards.
+     * An initializer that starts with a frame keeps it valid, nothing is left on the stack or in locals.
+     * */
+    private static void bindEngine(ClassNode input, boolean isInterface) {
+        int access = (isInterface ? Opcodes.ACC_PUBLIC : Opcodes.ACC_PRIVATE)
+                | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC;
+        input.fields.add(new FieldNode(access, ENGINE, ENGINE_DESC, null, null));
+        InsnList bind = new InsnList();
+        bind.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "java/lang/management/ManagementFactory",
+                "getPlatformMBeanServer", "()Ljavax/management/MBeanServer;", false));
+        bind.add(new TypeInsnNode(Opcodes.NEW, "javax/management/ObjectName"));
+        bind.add(new InsnNode(Opcodes.DUP));
+        bind.add(new LdcInsnNode(TransformerEngine.OBJECT_NAME));
+        bind.add(new MethodInsnNode(Opcodes.INVOKESPECIAL, "javax/management/ObjectName", "<init>", "(Ljava/lang/String;)V", false));
+        bind.add(new LdcInsnNode(TransformerEngine.ATTRIBUTE));
+        bind.add(new MethodInsnNode(Opcodes.INVOKEINTERFACE, "javax/management/MBeanServer", "getAttribute",
+                "(Ljavax/management/ObjectName;Ljava/lang/String;)Ljava/lang/Object;", true));
+        bind.add(new FieldInsnNode(Opcodes.PUTSTATIC, input.name, ENGINE, ENGINE_DESC));
+
+        MethodNode clinit = null;
+        for (MethodNode method : input.methods) {
+            if ("<clinit>".equals(method.name)) {
+                clinit = method;
+            }
+        }
+        if (clinit == null) {
+            clinit = new MethodNode(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
+            clinit.instructions.add(new InsnNode(Opcodes.RETURN));
+            input.methods.add(clinit);
+        }
+        clinit.instructions.insert(bind);
+        clinit.maxStack = Math.max(clinit.maxStack, 4);
+    }
+
+    /*
+     * static void noconnect$check(Object target, int port) {
+     *     ((ObjIntConsumer) noconnect$engine).accept(target, port);
+     * }
+     * Straight line code, no stack map frame is needed.
+     * */
+    private static MethodNode helper(String owner, boolean isInterface) {
+        int access = (isInterface ? Opcodes.ACC_PUBLIC : Opcodes.ACC_PRIVATE) | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC;
+        MethodNode helper = new MethodNode(access, HELPER, HELPER_DESC, null, null);
+        InsnList code = helper.instructions;
+        code.add(new FieldInsnNode(Opcodes.GETSTATIC, owner, ENGINE, ENGINE_DESC));
+        code.add(new TypeInsnNode(Opcodes.CHECKCAST, "java/util/function/ObjIntConsumer"));
+        code.add(new VarInsnNode(Opcodes.ALOAD, 0));
+        code.add(new VarInsnNode(Opcodes.ILOAD, 1));
+        code.add(new MethodInsnNode(Opcodes.INVOKEINTERFACE, "java/util/function/ObjIntConsumer", "accept", "(Ljava/lang/Object;I)V", true));
+        code.add(new InsnNode(Opcodes.RETURN));
+        helper.maxStack = 3;
+        helper.maxLocals = 2;
+        return helper;
+    }
+
+    /*
+     * static InetAddress[] noconnect$lookup(String host) {
+     *     return (InetAddress[]) ((Function) noconnect$engine).apply(host);
+     * }
+     * */
+    private static MethodNode lookupHelper(String owner, boolean isInterface) {
+        int access = (isInterface ? Opcodes.ACC_PUBLIC : Opcodes.ACC_PRIVATE) | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC;
+        MethodNode helper = new MethodNode(access, LOOKUP, LOOKUP_DESC, null, null);
+        InsnList code = helper.instructions;
+        code.add(new FieldInsnNode(Opcodes.GETSTATIC, owner, ENGINE, ENGINE_DESC));
+        code.add(new TypeInsnNode(Opcodes.CHECKCAST, "java/util/function/Function"));
+        code.add(new VarInsnNode(Opcodes.ALOAD, 0));
+        code.add(new MethodInsnNode(Opcodes.INVOKEINTERFACE, "java/util/function/Function", "apply", "(Ljava/lang/Object;)Ljava/lang/Object;", true));
+        code.add(new TypeInsnNode(Opcodes.CHECKCAST, "[Ljava/net/InetAddress;"));
+        code.add(new InsnNode(Opcodes.ARETURN));
+        helper.maxStack = 2;
+        helper.maxLocals = 1;
+        return helper;
+    }
+
+    @Nonnull
+    @Override
+    public TransformerVoteResult castVote(ITransformerVotingContext context) {
+        return TransformerVoteResult.YES;
+    }
+
+    @Nonnull
+    @Override
+    public Set<Target> targets() {
+        return targets;
+    }
+
+    private enum Hook {
+        // the target is the last argument
+        TOP,
+        // the target is followed by one argument
+        BELOW_1,
+        // the target and its port are the last arguments
+        WITH_PORT,
+        // an HttpRequest followed by one or two arguments
+        REQUEST_BELOW_1,
+        REQUEST_BELOW_2,
+        // the call is replaced by the lookup helper
+        LOOKUP_ALL,
+        LOOKUP_FIRST
+    }
+
+}
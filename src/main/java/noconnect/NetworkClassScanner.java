@@ -0,0 +1,166 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import cpw.mods.modlauncher.api.ITransformer.Target;
+import net.minecraftforge.fml.loading.FMLLoader;
+import net.minecraftforge.fml.loading.moddiscovery.ModFileInfo;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/*
+ * Finds the game and mod classes to transform, ModLauncher only transforms classes named by a target.
+ * A class is targeted when its constant pool names a network class, found by a byte search without parsing.
+ * */
+final class NetworkClassScanner {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final byte[][] NETWORK_CLASSES = {
+            bytes("java/net/Socket"),
+            bytes("javax/net/ssl/SSLSocket"),
+            bytes("java/nio/channels/SocketChannel"),
+            bytes("java/net/DatagramSocket"),
+            bytes("java/net/InetAddress"),
+            bytes("java/net/InetSocketAddress"),
+            bytes("java/net/URL"),
+            bytes("java/net/http/HttpClient"),
+    };
+
+    private NetworkClassScanner() {
+    }
+
+    static Set<Target> findTargets(Path launchDir) {
+        long start = System.nanoTime();
+        Set<Target> targets = new HashSet<>();
+        int scanned = 0;
+        for (Path file : getModFiles(launchDir)) {
+            try {
+                scanned += Files.isDirectory(file) ? scanDirectory(file, targets) : scanJar(file, targets);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn("Unable to scan {} for network calls, its calls are not checked", file, e);
+            }
+        }
+        LOGGER.info("Found {} of {} classes with network calls in {}ms", targets.size(), scanned,
+                (System.nanoTime() - start) / 1_000_000);
+        return targets;
+    }
+
+    private static List<Path> getModFiles(Path launchDir) {
+        List<Path> files = new ArrayList<>();
+        try {
+            // includes the game itself
+            for (ModFileInfo info : FMLLoader.getLoadingModList().getModFiles()) {
+                files.add(info.getFile().getFilePath());
+            }
+            return files;
+        } catch (LinkageError | RuntimeException e) {
+            LOGGER.warn("Mod list is unavailable, only scanning the mods folder", e);
+        }
+        try (Stream<Path> mods = Files.list(launchDir.resolve("mods"))) {
+            mods.filter(path -> path.toString().endsWith(".jar")).forEach(files::add);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to list the mods folder", e);
+        }
+        return files;
+    }
+
+    private static int scanJar(Path file, Set<Target> targets) throws IOException {
+        int scanned = 0;
+        try (ZipFile zip = new ZipFile(file.toFile())) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (!name.endsWith(".class") || name.startsWith("META-INF/")) {
+                    continue;
+                }
+                scanned++;
+                try (InputStream in = zip.getInputStream(entry)) {
+                    addIfNetwork(name, readAll(in), targets);
+                }
+            }
+        }
+        return scanned;
+    }
+
+    private static int scanDirectory(Path root, Set<Target> targets) throws IOException {
+        int scanned = 0;
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = root.relativize(file).toString().replace('\\', '/');
+                if (name.endsWith(".class")) {
+                    scanned++;
+                    addIfNetwork(name, Files.readAllBytes(file), targets);
+                }
+            }
+        }
+        return scanned;
+    }
+
+    private static void addIfNetwork(String entryName, byte[] bytes, Set<Target> targets) {
+        String className = entryName.substring(0, entryName.length() - ".class".length()).replace('/', '.');
+        if (!className.startsWith("noconnect.") && containsNetworkClass(bytes)) {
+            targets.add(Target.targetClass(className));
+        }
+    }
+
+    private static boolean containsNetworkClass(byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] != 'j') {
+                continue;
+            }
+            for (byte[] name : NETWORK_CLASSES) {
+                if (regionMatches(bytes, i, name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean regionMatches(byte[] bytes, int offset, byte[] name) {
+        if (offset + name.length > bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (bytes[offset + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        int length = 0;
+        int read;
+        while ((read = in.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+        return length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+    }
+
+    private static byte[] bytes(String name) {
+        return name.getBytes(StandardCharsets.US_ASCII);
+    }
+
+}
@@ -10,6 +10,8 @@ import net.minecraftforge.fml.common.Mod;
 import net.minecraftforge.fml.network.FMLNetworkConstants;
 import org.apache.commons.lang3.tuple.Pair;
 
+import java.util.concurrent.Callable;
+
 @Mod("noconnect")
 public class NoConnect {
 
@@ -20,4 +22,19 @@ public class NoConnect {
                 () -> Pair.of(() -> FMLNetworkConstants.IGNORESERVERONLY, (a, b) -> true));
     }
 
+    /**
+     * Run a task with every connection it makes on the current thread allowed.
+     * Scopes may be nested, connections made from other threads are still checked.
+     */
+    public static void runTrusted(Runnable task) {
+        ThreadTrust.runTrusted(task);
+    }
+
+    /**
+     * Same as {@link #runTrusted(Runnable)}, returning the result of the task
+     */
+    public static <T> T callTrusted(Callable<T> task) throws Exception {
+        return ThreadTrust.callTrusted(task);
+    }
+
 }
@@ -0,0 +1,18 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+/**
+ * Engine of the TRANSFORMER enforcement, registered as "noconnect:type=Engine".
+ * Transformed classes read it once, when they are initialized.
+ */
+public interface NoConnectEngineMBean {
+
+    /**
+     * @return the TransformerEngine, an ObjIntConsumer of checks and a Function of lookups
+     */
+    Object getEngine();
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+/**
+ * Counters and timings of the NoConnect checks, registered as "noconnect:type=Metrics".
+ * Latencies are in nanoseconds, percentiles are the upper bound of a power of two bucket.
+ */
+public interface NoConnectMetricsMBean {
+
+    long getLoopbackCount();
+
+    long getCachedIPCount();
+
+    long getAllowedIPCount();
+
+    long getAllowedThreadCount();
+
+    long getAllowedHostCount();
+
+    long getAllowedModCount();
+
+    long getUnlistedCount();
+
+    long getAuditCount();
+
+    long getDnsCount();
+
+    long getDeniedCount();
+
+    long getRateLimitedCount();
+
+    /**
+     * @return the most checked hosts as "host=count", most checked first
+     */
+    String[] getTopHosts();
+
+    long getConnectChecks();
+
+    long getConnectMeanNanos();
+
+    long getConnectP99Nanos();
+
+    long getConnectMaxNanos();
+
+    long getPermissionChecks();
+
+    long getPermissionMeanNanos();
+
+    long getPermissionP99Nanos();
+
+    long getPermissionMaxNanos();
+
+    long getDnsLookups();
+
+    long getDnsMeanNanos();
+
+    long getDnsP99Nanos();
+
+    long getDnsMaxNanos();
+
+    int getCacheSize();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    long getCacheEvictions();
+
+    /**
+     * @return the line written by the periodic summary
+     */
+    String summary();
+
+    void reset();
+
+}
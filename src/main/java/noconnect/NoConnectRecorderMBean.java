@@ -0,0 +1,21 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+/**
+ * Endpoints seen in audit mode, registered as "noconnect:type=AuditRecorder".
+ */
+public interface NoConnectRecorderMBean {
+
+    int getEndpointCount();
+
+    /**
+     * Write noconnect-suggested.toml now
+     *
+     * @return the path written, or why nothing was written
+     */
+    String writeSuggestion();
+
+}
@@ -25,6 +25,8 @@ import java.util.Set;
 
 public final class NoConnectSMLoad implements ITransformationService {
     private static final Logger LOGGER = LogManager.getLogger();
+    private Path launchDir;
+    private boolean transformerEnforcement;
 
     @Nonnull
     @Override
@@ -46,23 +48,13 @@ public final class NoConnectSMLoad implements ITransformationService {
     @ParametersAreNonnullByDefault
     public void onLoad(IEnvironment env, Set<String> otherServices) {
 
-        SecurityManager sm = System.getSecurityManager();
-        if (System.getSecurityManager() != null) {
-            LOGGER.error("Existing Security Manager is detected! {}", sm.toString());
-            throw new SecurityException("Existing Security Manager is detected! " + sm.toString());
-        }
-
-        String smProp = AccessController.doPrivileged(
-                (PrivilegedAction<String>) () -> System.getProperty("java.security.manager"));
-        if ("disallow".equals(smProp)) {
-            throw new IllegalStateException("Unable to set Security Manager at runtime, details at JDK-8203316");
-        }
-
         LOGGER.info("Loading NoConnect with configuration");
+        long start = System.nanoTime();
+        long phase = start;
         // Path property = Launcher.INSTANCE.environment().getProperty(Environment.Keys.GAMEDIR.get()).get();
         // Environment.Keys.GAMEDIR#get is not yet fully initialised with game directory, will crash when used.
         // Idea from ArgumentHandler#setArgs, which obtain the game directory
-        Path launchDir = new PathConverter(PathProperties.DIRECTORY_EXISTING).convert(""); // get current dir
+        launchDir = new PathConverter(PathProperties.DIRECTORY_EXISTING).convert(""); // get current dir
         // LOGGER.info("Launch Dir is: {}", launchDir.toAbsolutePath());
         Path configDir = launchDir.resolve("config");
         try {
@@ -72,28 +64,96 @@ public final class NoConnectSMLoad implements ITransformationService {
         } catch (IOException | SecurityException e) {
             LOGGER.warn("Unable to create config folder", e);
         }
-        Config.loadConfig(configDir.resolve("noconnect.toml"));
+        Path configPath = configDir.resolve("noconnect.toml");
+        Config.loadConfig(configPath);
+        phase = logPhase("config", phase);
+        Policy.publish(Policy.compile());
+        phase = logPhase("policy", phase);
         if (!Config.isEnabled()) {
             LOGGER.warn("No Connect is disabled! It will not load.");
             return;
         }
 
-        LOGGER.debug("Installing NoConnect...");
-        LOGGER.trace("BEFORE {}", () -> this.getClass().getProtectionDomain());
-        LOGGER.trace("BEFORE {}", () -> this.getClass().getProtectionDomain().getClassLoader());
-
-        System.setSecurityManager(new URLSecMgr());
-        LOGGER.trace("AFTER {}", () -> this.getClass().getProtectionDomain());
-        LOGGER.trace("AFTER {}", () -> this.getClass().getProtectionDomain().getClassLoader());
+        URLSecMgr secMgr;
+        if (Config.getEnforcement() == Config.Enforcement.TRANSFORMER) {
+            LOGGER.debug("Installing NoConnect as transformer...");
+            secMgr = new URLSecMgr();
+            new TransformerEngine(secMgr).publish();
+            transformerEnforcement = true;
+        } else {
+            checkSecurityManager();
+            LOGGER.debug("Installing NoConnect...");
+            LOGGER.trace("BEFORE {}", () -> this.getClass().getProtectionDomain());
+            LOGGER.trace("BEFORE {}", () -> this.getClass().getProtectionDomain().getClassLoader());
+
+            secMgr = new URLSecMgr();
+            System.setSecurityManager(secMgr);
+            LOGGER.trace("AFTER {}", () -> this.getClass().getProtectionDomain());
+            LOGGER.trace("AFTER {}", () -> this.getClass().getProtectionDomain().getClassLoader());
+        }
+        phase = logPhase("enforcement", phase);
+        secMgr.startLocalAddresses();
+        phase = logPhase("local addresses", phase);
+        if (Config.isPersistentCache()) {
+            secMgr.startResolutionFile(configDir.resolve("noconnect").resolve("resolution.bin"));
+            phase = logPhase("resolution file", phase);
+        }
+        if (Config.isPreResolve()) {
+            secMgr.startResolver();
+            phase = logPhase("resolver", phase);
+        }
+        secMgr.startAuditRecorder(configDir.resolve("noconnect-suggested.toml"));
+        phase = logPhase("audit recorder", phase);
+        if (Config.isAuditLogEnabled()) {
+            secMgr.startAuditLog(launchDir.resolve("logs").resolve("noconnect-audit.jsonl"));
+            phase = logPhase("audit log", phase);
+        }
+        if (Config.isMetricsEnabled()) {
+            secMgr.startMetrics(Config.getMetricsSummaryInterval());
+            phase = logPhase("metrics", phase);
+        }
+        if (Config.isHotReload()) {
+            ConfigWatcher.start(configPath);
+            logPhase("config watcher", phase);
+        }
+        LOGGER.debug("Loaded NoConnect in {}us", (System.nanoTime() - start) / 1_000);
         LOGGER.info("Successfully initialized NoConnect");
 
     }
 
+    /**
+     * @return the end of the phase, the start of the next
+     */
+    private static long logPhase(String name, long start) {
+        long end = System.nanoTime();
+        LOGGER.debug("Startup phase {} took {}us", name, (end - start) / 1_000);
+        return end;
+    }
+
+    private static void checkSecurityManager() {
+        SecurityManager sm = System.getSecurityManager();
+        if (System.getSecurityManager() != null) {
+            LOGGER.error("Existing Security Manager is detected! {}", sm.toString());
+            throw new SecurityException("Existing Security Manager is detected! " + sm.toString());
+        }
+
+        String smProp = AccessController.doPrivileged(
+                (PrivilegedAction<String>) () -> System.getProperty("java.security.manager"));
+        if ("disallow".equals(smProp)) {
+            throw new IllegalStateException("Unable to set Security Manager at runtime, details at JDK-8203316. " +
+                    "Set enforcement = \"TRANSFORMER\" in noconnect.toml to run without it.");
+        }
+    }
+
     @Nonnull
     @Override
     @SuppressWarnings("rawtypes")
     public List<ITransformer> transformers() {
-        return Collections.emptyList(); // noop
+        if (!transformerEnforcement) {
+            return Collections.emptyList(); // noop
+        }
+        // mods are found by now, the scan of FML runs before the transformers are gathered
+        return Collections.singletonList(new NetworkCallTransformer(NetworkClassScanner.findTargets(launchDir)));
     }
 
 }
@@ -0,0 +1,263 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import noconnect.Config.LogType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/*
+ * Immutable snapshot of the config, compiled for the checks in URLSecMgr.
+ * Published through a single volatile reference, a check reads it once and sees a complete policy
+ * even if the config is reloaded meanwhile.
+ * */
+final class Policy {
+    private static final AtomicInteger VERSION = new AtomicInteger();
+    private static final List<Consumer<Policy>> LISTENERS = new CopyOnWriteArrayList<>();
+    private static volatile Policy current;
+
+    final int version;
+    final boolean enabled;
+    final boolean allowDns;
+    final boolean auditMode;
+    final boolean logCaller;
+    final int logCallerSample;
+    final LogType logType;
+    // every allowed host whatever its port or mod, for resolution
+    final HostMatcher allowedHosts;
+    // allowed hosts without wildcard, these can be resolved ahead of time
+    final Set<String> exactHosts;
+    // changes with the allowed and mod hosts, identifies their resolved IP on disk
+    final long hostsFingerprint;
+    // mod ID -> the only hosts and IP the mod may connect to
+    private final Map<String, ModRules> mods;
+    // checks must attribute their mod
+    final boolean modScoped;
+    final PortRules<HostMatcher> hostRules;
+    final PortRules<AddressMatcher> ipRules;
+    // an IP resolved from a host is only allowed on the ports of the host, or for the mods of the host
+    final boolean portScopedHosts;
+    // hosts restricted to URL of some schemes, and the hosts allowed for each scheme
+    private final HostMatcher schemeScoped;
+    private final HostMatcher unscoped;
+    private final Map<String, HostMatcher> schemes;
+    // HTTP requests of hosts restricted to some paths and methods
+    private final UrlRules urlRules;
+    final String[] allowedThreads;
+    // token buckets per host name and per mod
+    final List<RateLimiter.Rule> hostRates;
+    final List<RateLimiter.Rule> modRates;
+    final boolean rateLimited;
+    // hosts denied in denylist mode, null in allowlist mode
+    final DenyList denyList;
+
+    private Policy() {
+        this.version = VERSION.incrementAndGet();
+        this.enabled = Config.isEnabled();
+        this.allowDns = Config.allowAllDns();
+        this.auditMode = Config.isAuditMode();
+        this.logCaller = Config.isLogCaller();
+        this.logCallerSample = Config.getLogCallerSample();
+        this.logType = Config.getMode();
+        List<PortRules.Rule> hosts = PortRules.parse(Config.getAllowedHosts());
+        this.hostRules = PortRules.compile(hosts, HostMatcher::compile);
+        this.mods = new HashMap<>();
+        List<String> resolvable = new ArrayList<>();
+        Set<String> exact = new LinkedHashSet<>();
+        for (String mod : Config.getMods()) {
+            List<PortRules.Rule> modHosts = PortRules.parse(Config.getModHosts(mod));
+            for (PortRules.Rule rule : modHosts) {
+                resolvable.add(rule.pattern);
+                if (!rule.pattern.startsWith("*.")) {
+                    exact.add(rule.pattern);
+                }
+            }
+            mods.put(mod, new ModRules(PortRules.compile(modHosts, HostMatcher::compile),
+                    PortRules.compile(PortRules.parse(Config.getModIPs(mod)), AddressMatcher::compile)));
+        }
+        this.modScoped = !mods.isEmpty();
+        if (resolvable.isEmpty()) {
+            this.allowedHosts = hostRules.all;
+        } else {
+            for (PortRules.Rule rule : hosts) {
+                resolvable.add(rule.pattern);
+            }
+            this.allowedHosts = HostMatcher.compile(resolvable);
+        }
+        this.portScopedHosts = hostRules.isPortScoped() || modScoped;
+        this.hostsFingerprint = fingerprint(hosts, resolvable);
+        List<String> schemeScoped = new ArrayList<>();
+        List<String> unscoped = new ArrayList<>();
+        Map<String, List<String>> schemes = new HashMap<>();
+        for (PortRules.Rule rule : hosts) {
+            if (!rule.pattern.startsWith("*.")) {
+                exact.add(rule.pattern);
+            }
+            if (rule.scheme == null) {
+                unscoped.add(rule.pattern);
+            } else {
+                schemeScoped.add(rule.pattern);
+                schemes.computeIfAbsent(rule.scheme, s -> new ArrayList<>()).add(rule.pattern);
+            }
+        }
+        this.exactHosts = Collections.unmodifiableSet(exact);
+        this.schemeScoped = HostMatcher.compile(schemeScoped);
+        this.unscoped = HostMatcher.compile(unscoped);
+        this.schemes = new HashMap<>();
+        schemes.forEach((scheme, patterns) -> this.schemes.put(scheme, HostMatcher.compile(patterns)));
+        this.ipRules = PortRules.compile(PortRules.parse(Config.getAllowedIPs()), AddressMatcher::compile);
+        this.urlRules = UrlRules.compile(Config.getAllowedUrls());
+        this.allowedThreads = Config.getAllowedThread().toArray(new String[0]);
+        this.hostRates = RateLimiter.parse(Config.getHostRateLimits());
+        this.modRates = RateLimiter.parse(Config.getModRateLimits());
+        this.rateLimited = !hostRates.isEmpty() || !modRates.isEmpty();
+        this.denyList = Config.isDenylist() ? DenyList.open(Config.getListsDir()) : null;
+    }
+
+    // FNV-1a of the sorted patterns
+    private static long fingerprint(List<PortRules.Rule> hosts, List<String> modHosts) {
+        List<String> patterns = new ArrayList<>(modHosts);
+        for (PortRules.Rule rule : hosts) {
+            patterns.add(rule.pattern);
+        }
+        Collections.sort(patterns);
+        long hash = 0xCBF29CE484222325L;
+        for (String pattern : patterns) {
+            for (int i = 0; i < pattern.length(); i++) {
+                hash = (hash ^ pattern.charAt(i)) * 0x100000001B3L;
+            }
+            hash = (hash ^ '\n') * 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Compile the currently loaded config
+     */
+    static Policy compile() {
+        return new Policy();
+    }
+
+    static Policy get() {
+        return current;
+    }
+
+    static void publish(Policy policy) {
+        current = policy;
+        for (Consumer<Policy> listener : LISTENERS) {
+            listener.accept(policy);
+        }
+    }
+
+    /**
+     * Listener is notified on the publishing thread, after the policy is visible to checks
+     */
+    static void addListener(Consumer<Policy> listener) {
+        LISTENERS.add(listener);
+    }
+
+    static void removeListener(Consumer<Policy> listener) {
+        LISTENERS.remove(listener);
+    }
+
+    /**
+     * @param port -1 for a lookup, allowed if the host is allowed on any port
+     */
+    boolean isAllowedHost(String host, int port) {
+        return isAllowedHost(hostRules, host, port);
+    }
+
+    boolean isAllowedIP(HostAddress address, int port) {
+        return isAllowedIP(ipRules, address, port);
+    }
+
+    /**
+     * @return the rules of a mod listed in the config, null if the mod follows the allowed lists
+     */
+    ModRules getModRules(String mod) {
+        return mod == null ? null : mods.get(mod);
+    }
+
+    private static boolean isAllowedHost(PortRules<HostMatcher> rules, String host, int port) {
+        if (port == PortRules.ANY_PORT) {
+            return rules.all.matches(host);
+        }
+        if (rules.anyPort.matches(host)) {
+            return true;
+        }
+        HostMatcher scoped = rules.forPort(port);
+        return scoped != null && scoped.matches(host);
+    }
+
+    private static boolean isAllowedIP(PortRules<AddressMatcher> rules, HostAddress address, int port) {
+        if (port == PortRules.ANY_PORT) {
+            return rules.all.matches(address);
+        }
+        if (rules.anyPort.matches(address)) {
+            return true;
+        }
+        AddressMatcher scoped = rules.forPort(port);
+        return scoped != null && scoped.matches(address);
+    }
+
+    /**
+     * @return false if the host is only allowed for URL of other schemes
+     */
+    boolean isAllowedScheme(String host, String scheme) {
+        if (!schemeScoped.matches(host) || unscoped.matches(host)) {
+            return true;
+        }
+        HostMatcher allowed = schemes.get(scheme);
+        return allowed != null && allowed.matches(host);
+    }
+
+    /**
+     * @param actions of the URLPermission, the requested methods and headers
+     * @return false if the host only allows other paths or methods
+     */
+    boolean isAllowedUrl(UrlName url, String actions) {
+        return urlRules.isAllowed(url, actions);
+    }
+
+    boolean isAllowedThread(String threadName) {
+        for (String prefix : allowedThreads) {
+            if (threadName.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Hosts and IP of a mod, written as the allowed lists
+     * */
+    static final class ModRules {
+        private final PortRules<HostMatcher> hosts;
+        private final PortRules<AddressMatcher> ip;
+
+        private ModRules(PortRules<HostMatcher> hosts, PortRules<AddressMatcher> ip) {
+            this.hosts = hosts;
+            this.ip = ip;
+        }
+
+        boolean isAllowedHost(String host, int port) {
+            return Policy.isAllowedHost(hosts, host, port);
+        }
+
+        boolean isAllowedIP(HostAddress address, int port) {
+            return Policy.isAllowedIP(ip, address, port);
+        }
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+
+/*
+ * Allowed entries indexed by port, an entry without port goes to the any port matcher.
+ * The port buckets are an open addressing table of int keys, the lookup is a probe and no boxing.
+ * Entries are written "pattern", "pattern:port", "[IPv6]:port", "[IPv6]/len:port" or "scheme://pattern[:port]".
+ * */
+final class PortRules<M> {
+    static final int ANY_PORT = -1;
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    final M anyPort;
+    // every pattern whatever its port, for lookups and resolution
+    final M all;
+    private final int[] ports;
+    private final Object[] matchers;
+    private final int mask;
+
+    private PortRules(M anyPort, M all, int[] ports, Object[] matchers) {
+        this.anyPort = anyPort;
+        this.all = all;
+        this.ports = ports;
+        this.matchers = matchers;
+        this.mask = ports.length - 1;
+    }
+
+    static <M> PortRules<M> compile(List<Rule> rules, Function<Collection<String>, M> compiler) {
+        List<String> any = new ArrayList<>();
+        List<String> all = new ArrayList<>();
+        Map<Integer, List<String>> byPort = new LinkedHashMap<>();
+        for (Rule rule : rules) {
+            all.add(rule.pattern);
+            if (rule.port == ANY_PORT) {
+                any.add(rule.pattern);
+            } else {
+                byPort.computeIfAbsent(rule.port, p -> new ArrayList<>()).add(rule.pattern);
+            }
+        }
+        // at most half full, a miss ends on an empty slot quickly
+        int size = Integer.highestOneBit(Math.max(byPort.size(), 1)) << 2;
+        int[] ports = new int[size];
+        Object[] matchers = new Object[size];
+        for (Map.Entry<Integer, List<String>> entry : byPort.entrySet()) {
+            int slot = hash(entry.getKey()) & (size - 1);
+            while (matchers[slot] != null) {
+                slot = (slot + 1) & (size - 1);
+            }
+            ports[slot] = entry.getKey();
+            matchers[slot] = compiler.apply(entry.getValue());
+        }
+        M anyPort = compiler.apply(any);
+        return new PortRules<>(anyPort, byPort.isEmpty() ? anyPort : compiler.apply(all), ports, matchers);
+    }
+
+    /**
+     * @return the matcher of entries scoped to the port, null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    M forPort(int port) {
+        for (int slot = hash(port) & mask; matchers[slot] != null; slot = (slot + 1) & mask) {
+            if (ports[slot] == port) {
+                return (M) matchers[slot];
+            }
+        }
+        return null;
+    }
+
+    boolean isPortScoped() {
+        for (Object matcher : matchers) {
+            if (matcher != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int hash(int port) {
+        int h = port * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the rules of the entries, invalid entries are logged and skipped
+     */
+    static List<Rule> parse(Collection<String> entries) {
+        List<Rule> rules = new ArrayList<>(entries.size());
+        for (String entry : entries) {
+            Rule rule = Rule.parse(entry.trim());
+            if (rule == null) {
+                LOGGER.warn("Ignoring invalid allowed entry \"{}\"", entry);
+            } else {
+                rules.add(rule);
+            }
+        }
+        return rules;
+    }
+
+    static final class Rule {
+        final String scheme;
+        final String pattern;
+        final int port;
+
+        private Rule(String scheme, String pattern, int port) {
+            this.scheme = scheme;
+            this.pattern = pattern;
+            this.port = port;
+        }
+
+        private static Rule parse(String entry) {
+            String scheme = null;
+            int separator = entry.indexOf("://");
+            if (separator > 0) {
+                scheme = entry.substring(0, separator).toLowerCase(Locale.ROOT);
+                entry = entry.substring(separator + 3);
+                if (entry.endsWith("/")) {
+                    entry = entry.substring(0, entry.length() - 1);
+                }
+            }
+            String pattern;
+            String port = null;
+            if (entry.startsWith("[")) {
+                // [2001:db8::1]:443, [2001:db8::]/32:443
+                int close = entry.indexOf(']');
+                if (close < 0) {
+                    return null;
+                }
+                String rest = entry.substring(close + 1);
+                int colon = rest.indexOf(':');
+                if (colon >= 0) {
+                    port = rest.substring(colon + 1);
+                    rest = rest.substring(0, colon);
+                }
+                pattern = entry.substring(1, close) + rest;
+            } else {
+                int colon = entry.indexOf(':');
+                // more than one colon is an IPv6 address without port
+                if (colon >= 0 && colon == entry.lastIndexOf(':')) {
+                    port = entry.substring(colon + 1);
+                    pattern = entry.substring(0, colon);
+                } else {
+                    pattern = entry;
+                }
+            }
+            if (pattern.isEmpty()) {
+                return null;
+            }
+            int value = ANY_PORT;
+            if (port != null) {
+                try {
+                    value = Integer.parseInt(port);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                if (value < 1 || value > 0xFFFF) {
+                    return null;
+                }
+            } else if (scheme != null) {
+                value = getDefaultPort(scheme);
+            }
+            return new Rule(scheme, pattern, value);
+        }
+
+        private static int getDefaultPort(String scheme) {
+            switch (scheme) {
+                case "http":
+                case "ws":
+                    return 80;
+                case "https":
+                case "wss":
+                    return 443;
+                default:
+                    return ANY_PORT;
+            }
+        }
+    }
+
+}
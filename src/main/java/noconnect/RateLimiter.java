@@ -0,0 +1,194 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/*
+ * Token buckets of the checks of a host name and of a mod, as GCRA: a bucket is the time its next token
+ * is due in a single AtomicLong, taking a token is a read and a CAS, without lock.
+ * The rule of a host or mod is looked up when it is first seen, then a check is a map read.
+ * Must be cleared whenever a new Policy is published.
+ * */
+final class RateLimiter {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final Bucket UNLIMITED = new Bucket("", null, System::nanoTime);
+
+    private final ConcurrentHashMap<String, Bucket> hosts = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Bucket> mods = new ConcurrentHashMap<>();
+    private final int maxBuckets;
+    private final LongSupplier clock;
+
+    RateLimiter(int maxBuckets) {
+        this(maxBuckets, System::nanoTime);
+    }
+
+    /**
+     * @param clock nanoTime of the buckets, tests advance it by hand
+     */
+    RateLimiter(int maxBuckets, LongSupplier clock) {
+        this.maxBuckets = Math.max(1, maxBuckets);
+        this.clock = clock;
+    }
+
+    /**
+     * @return the bucket of the host or mod that is out of tokens, null if the check may proceed
+     */
+    Bucket acquire(Policy policy, String host, String mod) {
+        if (!policy.hostRates.isEmpty()) {
+            Bucket bucket = get(hosts, host, policy.hostRates);
+            if (bucket != UNLIMITED && !bucket.tryAcquire()) {
+                return bucket;
+            }
+        }
+        if (mod != null && !policy.modRates.isEmpty()) {
+            Bucket bucket = get(mods, mod, policy.modRates);
+            if (bucket != UNLIMITED && !bucket.tryAcquire()) {
+                return bucket;
+            }
+        }
+        return null;
+    }
+
+    private Bucket get(ConcurrentHashMap<String, Bucket> buckets, String key, List<Rule> rules) {
+        Bucket bucket = buckets.get(key);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (buckets.size() >= maxBuckets) {
+            // a budget restarts full, only a flood of distinct names gets there
+            buckets.clear();
+        }
+        return buckets.computeIfAbsent(key, k -> {
+            for (Rule rule : rules) {
+                if (NetworkUtil.matchesHostname(k, rule.pattern)) {
+                    return new Bucket(k, rule, clock);
+                }
+            }
+            return UNLIMITED;
+        });
+    }
+
+    void clear() {
+        hosts.clear();
+        mods.clear();
+    }
+
+    /**
+     * @return the rules of the entries, invalid entries are logged and skipped
+     */
+    static List<Rule> parse(Collection<String> entries) {
+        List<Rule> rules = new ArrayList<>(entries.size());
+        for (String entry : entries) {
+            Rule rule = Rule.parse(entry.trim());
+            if (rule == null) {
+                LOGGER.warn("Ignoring invalid rate limit \"{}\", expected \"<pattern> <burst> <per minute>\"", entry);
+            } else {
+                rules.add(rule);
+            }
+        }
+        return rules;
+    }
+
+    static final class Rule {
+        private final String pattern;
+        private final int burst;
+        private final long intervalNanos;
+
+        private Rule(String pattern, int burst, long intervalNanos) {
+            this.pattern = pattern;
+            this.burst = burst;
+            this.intervalNanos = intervalNanos;
+        }
+
+        // "*.example.com 10 60", a burst of 10 then 60 per minute
+        private static Rule parse(String entry) {
+            String[] parts = entry.split("\\s+");
+            if (parts.length != 3) {
+                return null;
+            }
+            int burst;
+            int perMinute;
+            try {
+                burst = Integer.parseInt(parts[1]);
+                perMinute = Integer.parseInt(parts[2]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (parts[0].isEmpty() || burst < 1 || perMinute < 1) {
+                return null;
+            }
+            return new Rule(parts[0], burst, TimeUnit.MINUTES.toNanos(1) / perMinute);
+        }
+    }
+
+    static final class Bucket {
+        final String key;
+        private final String limitedMessage;
+        private final long intervalNanos;
+        private final long burstNanos;
+        private final LongSupplier clock;
+        private final AtomicLong dueAt;
+        // logged when the bucket runs out, not for every limited check
+        private volatile boolean empty;
+
+        private Bucket(String key, Rule rule, LongSupplier clock) {
+            this.key = key;
+            this.clock = clock;
+            this.dueAt = new AtomicLong(clock.getAsLong());
+            this.limitedMessage = "Rate limited - " + key;
+            this.intervalNanos = rule == null ? 0 : rule.intervalNanos;
+            this.burstNanos = rule == null ? 0 : rule.intervalNanos * rule.burst;
+        }
+
+        private boolean tryAcquire() {
+            long now = clock.getAsLong();
+            while (true) {
+                long due = dueAt.get();
+                // an idle bucket refills up to the burst, not beyond
+                long next = (due - now > 0 ? due : now) + intervalNanos;
+                if (next - now > burstNanos) {
+                    return false;
+                }
+                if (dueAt.compareAndSet(due, next)) {
+                    if (empty) {
+                        empty = false;
+                    }
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @param port -1 for a lookup
+         * @return thrown as a denial of the same check, a new instance for each limited check
+         */
+        IOException limited(int port) {
+            return VerdictCache.denied(limitedMessage, port);
+        }
+
+        /**
+         * @return true for the first limited check since the bucket had tokens
+         */
+        boolean onLimited() {
+            if (empty) {
+                return false;
+            }
+            empty = true;
+            return true;
+        }
+    }
+
+}
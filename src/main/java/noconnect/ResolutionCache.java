@@ -0,0 +1,383 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import java.net.InetAddress;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/*
+ * Resolved address -> allowed hosts, shared by every network thread.
+ * A CDN or anycast address may serve several allowed hosts, each is kept with its own expiry.
+ * Reads are a single ConcurrentHashMap#get, entries expire after the DNS TTL,
+ * and when full the least recently read entries are evicted in batches.
+ * Resolved hosts keep their addresses, a host that failed to resolve is kept for the negative TTL.
+ * */
+final class ResolutionCache {
+    // lastAccess is only refreshed when older than this, keeps hot entries from bouncing between cores
+    private static final long ACCESS_GRANULARITY = TimeUnit.SECONDS.toNanos(1);
+    // fraction of entries removed once the cache overflows, amortise the scan over many puts
+    private static final int EVICT_DIVISOR = 8;
+    // hosts kept per address, the one expiring first makes room for a new one
+    private static final int MAX_HOSTS = 8;
+    private static final int DEFAULT_JVM_TTL = 30;
+    private static final int DEFAULT_JVM_NEGATIVE_TTL = 10;
+    private static final InetAddress[] UNRESOLVED = new InetAddress[0];
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, HostRecord> resolvedHosts = new ConcurrentHashMap<>();
+    private final int maxSize;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    ResolutionCache(int maxSize, int ttlSeconds) {
+        this.maxSize = Math.max(1, maxSize);
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds < 0 ? getJvmTtl("networkaddress.cache.ttl", DEFAULT_JVM_TTL) : ttlSeconds);
+        this.negativeTtlNanos = Math.min(ttlNanos,
+                TimeUnit.SECONDS.toNanos(getJvmTtl("networkaddress.cache.negative.ttl", DEFAULT_JVM_NEGATIVE_TTL)));
+    }
+
+    /**
+     * @return the allowed hosts the address was resolved from, not to be modified, null if absent or expired
+     */
+    String[] get(String address) {
+        Entry entry = entries.get(address);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        long now = System.nanoTime();
+        if (now - entry.firstExpiry > 0) {
+            entry = removeExpired(address, entry, now);
+            if (entry == null) {
+                misses.increment();
+                return null;
+            }
+        }
+        if (now - entry.lastAccess > ACCESS_GRANULARITY) {
+            entry.lastAccess = now;
+        }
+        hits.increment();
+        return entry.hosts;
+    }
+
+    /**
+     * @return true if the address was not cached for this host before
+     */
+    boolean put(String address, String host) {
+        long now = System.nanoTime();
+        return add(address, host, now, now + ttlNanos);
+    }
+
+    private boolean add(String address, String host, long now, long expiresAt) {
+        boolean[] added = new boolean[1];
+        entries.compute(address, (k, previous) -> {
+            if (previous == null) {
+                added[0] = true;
+                return new Entry(new String[]{host}, new long[]{expiresAt}, now);
+            }
+            added[0] = !previous.has(host, now);
+            return previous.with(host, expiresAt, now);
+        });
+        if (entries.size() > maxSize) {
+            evict();
+        }
+        return added[0];
+    }
+
+    /**
+     * @return the entry without its expired hosts, null if none is left
+     */
+    private Entry removeExpired(String address, Entry entry, long now) {
+        Entry live = entry.retain(host -> true, now);
+        if (live == null) {
+            entries.remove(address, entry);
+        } else {
+            // a put meanwhile wins, it is read on the next check
+            entries.replace(address, entry, live);
+        }
+        return live;
+    }
+
+    /**
+     * Record that all IP of the host were put into the cache
+     */
+    void markResolved(String host, InetAddress[] addresses) {
+        putRecord(host, new HostRecord(addresses, System.nanoTime() + ttlNanos));
+    }
+
+    /**
+     * Put the addresses of a host resolved by an earlier run, for the rest of their TTL.
+     * The host is not marked resolved: they may be an hour old, the host is still queried and refreshed,
+     * and connections to its current addresses are allowed once that answer is in.
+     */
+    void restore(String host, InetAddress[] addresses, long remainingNanos) {
+        long now = System.nanoTime();
+        long expiresAt = now + Math.min(remainingNanos, ttlNanos);
+        for (InetAddress address : addresses) {
+            add(address.getHostAddress(), host, now, expiresAt);
+        }
+    }
+
+    /**
+     * Record that the host does not resolve, it is not queried again before the negative TTL
+     */
+    void markUnresolved(String host) {
+        putRecord(host, new HostRecord(UNRESOLVED, System.nanoTime() + negativeTtlNanos));
+    }
+
+    private void putRecord(String host, HostRecord record) {
+        if (resolvedHosts.size() >= maxSize) {
+            long now = System.nanoTime();
+            resolvedHosts.values().removeIf(r -> now - r.expiresAt > 0);
+        }
+        resolvedHosts.put(host, record);
+    }
+
+    /**
+     * @return the addresses of the host, empty if it does not resolve, null if not cached or expired
+     */
+    InetAddress[] getAddresses(String host) {
+        HostRecord record = resolvedHosts.get(host);
+        if (record == null || System.nanoTime() - record.expiresAt > 0) {
+            return null;
+        }
+        return record.addresses;
+    }
+
+    /**
+     * @return true if the host was resolved or failed to resolve, and it has not yet expired
+     */
+    boolean isResolved(String host) {
+        HostRecord record = resolvedHosts.get(host);
+        if (record == null || System.nanoTime() - record.expiresAt > 0) {
+            return false;
+        }
+        if (!record.used) {
+            record.used = true;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the host was looked up through isResolved since the last call
+     */
+    boolean takeUsed(String host) {
+        HostRecord record = resolvedHosts.get(host);
+        if (record == null || !record.used) {
+            return false;
+        }
+        record.used = false;
+        return true;
+    }
+
+    long getTtlNanos() {
+        return ttlNanos;
+    }
+
+    void clear() {
+        entries.clear();
+        resolvedHosts.clear();
+    }
+
+    void retainHosts(Predicate<String> isAllowed) {
+        long now = System.nanoTime();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            Entry kept = entry.retain(isAllowed, now);
+            if (kept == null) {
+                entries.remove(e.getKey(), entry);
+            } else if (kept != entry) {
+                entries.replace(e.getKey(), entry, kept);
+            }
+        }
+        resolvedHosts.keySet().removeIf(host -> !isAllowed.test(host));
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long hitCount() {
+        return hits.sum();
+    }
+
+    long missCount() {
+        return misses.sum();
+    }
+
+    long evictionCount() {
+        return evictions.sum();
+    }
+
+    private synchronized void evict() {
+        // another writer may have evicted already
+        int size = entries.size();
+        if (size <= maxSize) {
+            return;
+        }
+        long now = System.nanoTime();
+        long[] accessed = new long[size];
+        int count = 0;
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            if (now - entry.lastExpiry > 0) {
+                if (entries.remove(e.getKey(), entry)) {
+                    evictions.increment();
+                }
+            } else if (count < accessed.length) {
+                accessed[count++] = entry.lastAccess - now; // relative, keeps nanoTime overflow out of the sort
+            }
+        }
+        int excess = entries.size() - maxSize;
+        if (excess <= 0 || count == 0) {
+            return;
+        }
+        Arrays.sort(accessed, 0, count);
+        int target = Math.min(count - 1, excess + maxSize / EVICT_DIVISOR);
+        long threshold = accessed[target] + now;
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            if (entry.lastAccess - threshold <= 0 && entries.remove(e.getKey(), entry)) {
+                evictions.increment();
+            }
+        }
+    }
+
+    private static int getJvmTtl(String property, int defaultTtl) {
+        // same property InetAddress honours for its own cache
+        String ttl = Security.getProperty(property);
+        if (ttl != null) {
+            try {
+                int value = Integer.parseInt(ttl.trim());
+                if (value >= 0) {
+                    return value;
+                }
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return defaultTtl;
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + size() + ", hits=" + hitCount() + ", misses=" + missCount() + ", evictions=" + evictionCount();
+    }
+
+    /*
+     * Immutable but for lastAccess, replaced as a whole when a host is added or expires
+     * */
+    private static final class Entry {
+        private final String[] hosts;
+        private final long[] expiresAt;
+        // an expired host is removed on the first read past firstExpiry, the entry past lastExpiry
+        private final long firstExpiry;
+        private final long lastExpiry;
+        private volatile long lastAccess;
+
+        private Entry(String[] hosts, long[] expiresAt, long lastAccess) {
+            this.hosts = hosts;
+            this.expiresAt = expiresAt;
+            this.lastAccess = lastAccess;
+            long first = expiresAt[0];
+            long last = expiresAt[0];
+            for (long expiry : expiresAt) {
+                first = expiry - first < 0 ? expiry : first;
+                last = expiry - last > 0 ? expiry : last;
+            }
+            this.firstExpiry = first;
+            this.lastExpiry = last;
+        }
+
+        private boolean has(String host, long now) {
+            for (int i = 0; i < hosts.length; i++) {
+                if (hosts[i].equals(host) && now - expiresAt[i] <= 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the live hosts with this one first, until its new expiry
+         */
+        private Entry with(String host, long expiry, long now) {
+            String[] newHosts = new String[Math.min(hosts.length + 1, MAX_HOSTS)];
+            long[] newExpiresAt = new long[newHosts.length];
+            newHosts[0] = host;
+            newExpiresAt[0] = expiry;
+            int count = 1;
+            for (int i = 0; i < hosts.length; i++) {
+                if (hosts[i].equals(host) || now - expiresAt[i] > 0) {
+                    continue;
+                }
+                if (count < newHosts.length) {
+                    newHosts[count] = hosts[i];
+                    newExpiresAt[count++] = expiresAt[i];
+                } else {
+                    // full, the host expiring first is dropped
+                    int first = 1;
+                    for (int j = 2; j < count; j++) {
+                        first = newExpiresAt[j] - newExpiresAt[first] < 0 ? j : first;
+                    }
+                    if (expiresAt[i] - newExpiresAt[first] > 0) {
+                        newHosts[first] = hosts[i];
+                        newExpiresAt[first] = expiresAt[i];
+                    }
+                }
+            }
+            return new Entry(Arrays.copyOf(newHosts, count), Arrays.copyOf(newExpiresAt, count), now);
+        }
+
+        /**
+         * @return this entry if every host is kept, null if none is
+         */
+        private Entry retain(Predicate<String> isAllowed, long now) {
+            int count = 0;
+            for (int i = 0; i < hosts.length; i++) {
+                if (now - expiresAt[i] <= 0 && isAllowed.test(hosts[i])) {
+                    count++;
+                }
+            }
+            if (count == hosts.length) {
+                return this;
+            }
+            if (count == 0) {
+                return null;
+            }
+            String[] keptHosts = new String[count];
+            long[] keptExpiresAt = new long[count];
+            count = 0;
+            for (int i = 0; i < hosts.length; i++) {
+                if (now - expiresAt[i] <= 0 && isAllowed.test(hosts[i])) {
+                    keptHosts[count] = hosts[i];
+                    keptExpiresAt[count++] = expiresAt[i];
+                }
+            }
+            return new Entry(keptHosts, keptExpiresAt, lastAccess);
+        }
+    }
+
+    private static final class HostRecord {
+        private final InetAddress[] addresses;
+        private final long expiresAt;
+        private volatile boolean used;
+
+        private HostRecord(InetAddress[] addresses, long expiresAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+}
@@ -0,0 +1,281 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/*
+ * Resolved hosts kept on disk, so a restarted server, or another one started from the same folder,
+ * begins with a warm ResolutionCache instead of waiting on DNS.
+ * The header holds a fingerprint of the allowed hosts and the end of the data, records are appended after it:
+ * [length int][crc int][expires long][host length short][host][address count byte]([length byte][address])...
+ * Every JVM writes under an exclusive FileLock, the file is read through a mapping of the data.
+ * The file never shrinks, as a mapped file cannot be truncated on Windows; compaction rewrites the live
+ * records from the start of the data and moves the end back.
+ * */
+final class ResolutionFile {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int MAGIC = 0x4E435246; // NCRF
+    private static final int VERSION = 1;
+    // magic, version, fingerprint, end of data
+    private static final int HEADER_SIZE = 24;
+    private static final int END_OFFSET = 16;
+    private static final int MAX_SIZE = 4 << 20;
+    private static final int COMPACT_MIN_SIZE = 64 << 10;
+    // the JVM caches names for 30 seconds by default, records would be expired before most restarts
+    private static final long MIN_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final Path file;
+    private final long fingerprint;
+    private FileChannel channel;
+    // the last read stopped at a torn or corrupt record before the end
+    private boolean torn;
+
+    ResolutionFile(Path file, long fingerprint) {
+        this.file = file;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Open the file and restore its live records allowed by the policy into the cache
+     *
+     * @return the number of hosts restored
+     */
+    synchronized int load(Policy policy, ResolutionCache cache) {
+        Map<String, Record> live = new LinkedHashMap<>();
+        int total = 0;
+        try {
+            Files.createDirectories(file.getParent());
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try (FileLock ignored = channel.lock()) {
+                long end = readEnd();
+                if (end < 0) {
+                    // new, another version, or resolved for other allowed hosts
+                    writeHeader(HEADER_SIZE);
+                    return 0;
+                }
+                total = readLive(end, live);
+                // records appended after a torn one would never be read
+                if (torn || end > COMPACT_MIN_SIZE && live.size() * 2 < total) {
+                    compact(live);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Unable to load resolved hosts from {}, they are not kept", file, e);
+            close();
+            return 0;
+        }
+        int restored = 0;
+        long now = System.currentTimeMillis();
+        for (Record record : live.values()) {
+            // the file is not trusted to allow anything the config does not
+            if (policy.allowedHosts.matches(record.host)) {
+                cache.restore(record.host, record.addresses, TimeUnit.MILLISECONDS.toNanos(record.expiresAt - now));
+                restored++;
+            }
+        }
+        LOGGER.info("Restored {} resolved hosts of {} records from {}", restored, total, file);
+        return restored;
+    }
+
+    /**
+     * @param ttlNanos of the cache, a record is kept at least MIN_TTL_MILLIS for the next start
+     */
+    synchronized void append(String host, InetAddress[] addresses, long ttlNanos) {
+        if (channel == null) {
+            return;
+        }
+        long ttlMillis = Math.max(TimeUnit.NANOSECONDS.toMillis(ttlNanos), MIN_TTL_MILLIS);
+        ByteBuffer record = Record.encode(host, addresses, System.currentTimeMillis() + ttlMillis);
+        try (FileLock ignored = channel.lock()) {
+            long end = readEnd();
+            // reset by a server with other allowed hosts
+            if (end < 0) {
+                return;
+            }
+            if (end + record.remaining() > MAX_SIZE) {
+                // refreshed hosts append a record each time, most of a full file is superseded or expired
+                Map<String, Record> live = new LinkedHashMap<>();
+                readLive(end, live);
+                end = compact(live);
+                if (end + record.remaining() > MAX_SIZE) {
+                    return;
+                }
+            }
+            writeFully(record, end);
+            ByteBuffer newEnd = ByteBuffer.allocate(8);
+            newEnd.putLong(0, end + record.limit());
+            writeFully(newEnd, END_OFFSET);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Unable to write resolved hosts to {}, they are no longer kept", file, e);
+            close();
+        }
+    }
+
+    synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * @return the end of the data, -1 if the header is not of this version and fingerprint
+     */
+    private long readEnd() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                break;
+            }
+        }
+        if (header.hasRemaining() || header.getInt(0) != MAGIC || header.getInt(4) != VERSION
+                || header.getLong(8) != fingerprint) {
+            return -1;
+        }
+        long end = header.getLong(END_OFFSET);
+        return end < HEADER_SIZE || end > channel.size() ? -1 : end;
+    }
+
+    private void writeHeader(long end) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(fingerprint).putLong(end).flip();
+        writeFully(header, 0);
+    }
+
+    /**
+     * @param live filled with the records not expired, the last record of a host supersedes the earlier
+     * @return the number of records read
+     */
+    private int readLive(long end, Map<String, Record> live) throws IOException {
+        MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, end - HEADER_SIZE);
+        long now = System.currentTimeMillis();
+        int total = 0;
+        Record record;
+        while ((record = Record.read(data)) != null) {
+            total++;
+            live.remove(record.host);
+            if (record.expiresAt > now) {
+                live.put(record.host, record);
+            }
+        }
+        torn = data.hasRemaining();
+        return total;
+    }
+
+    /**
+     * @return the new end of the data
+     */
+    private long compact(Map<String, Record> live) throws IOException {
+        long end = HEADER_SIZE;
+        for (Record record : live.values()) {
+            ByteBuffer encoded = Record.encode(record.host, record.addresses, record.expiresAt);
+            writeFully(encoded, end);
+            end += encoded.limit();
+        }
+        writeHeader(end);
+        channel.force(false);
+        LOGGER.debug("Compacted {} to {} live records", file, live.size());
+        return end;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static final class Record {
+        private final String host;
+        private final InetAddress[] addresses;
+        private final long expiresAt;
+
+        private Record(String host, InetAddress[] addresses, long expiresAt) {
+            this.host = host;
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+        }
+
+        private static ByteBuffer encode(String host, InetAddress[] addresses, long expiresAt) {
+            byte[] name = host.getBytes(StandardCharsets.UTF_8);
+            int count = Math.min(addresses.length, 0xFF);
+            int length = 8 + 2 + name.length + 1;
+            for (int i = 0; i < count; i++) {
+                length += 1 + addresses[i].getAddress().length;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(8 + length);
+            buffer.position(8);
+            buffer.putLong(expiresAt).putShort((short) name.length).put(name).put((byte) count);
+            for (int i = 0; i < count; i++) {
+                byte[] address = addresses[i].getAddress();
+                buffer.put((byte) address.length).put(address);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buffer.array(), 8, length);
+            buffer.putInt(0, length).putInt(4, (int) crc.getValue());
+            buffer.flip();
+            return buffer;
+        }
+
+        /**
+         * @return the next record, null at the end of the data or at a torn or corrupt record
+         */
+        private static Record read(ByteBuffer data) {
+            if (data.remaining() < 8) {
+                return null;
+            }
+            int length = data.getInt();
+            int expected = data.getInt();
+            if (length < 11 || length > data.remaining()) {
+                return null;
+            }
+            byte[] body = new byte[length];
+            data.get(body);
+            CRC32 crc = new CRC32();
+            crc.update(body, 0, length);
+            if ((int) crc.getValue() != expected) {
+                return null;
+            }
+            ByteBuffer record = ByteBuffer.wrap(body);
+            try {
+                long expiresAt = record.getLong();
+                byte[] name = new byte[record.getShort() & 0xFFFF];
+                record.get(name);
+                String host = new String(name, StandardCharsets.UTF_8);
+                InetAddress[] addresses = new InetAddress[record.get() & 0xFF];
+                for (int i = 0; i < addresses.length; i++) {
+                    byte[] address = new byte[record.get() & 0xFF];
+                    record.get(address);
+                    // no lookup, only the length of the address is checked
+                    addresses[i] = InetAddress.getByAddress(host, address);
+                }
+                return new Record(host, addresses, expiresAt);
+            } catch (UnknownHostException | RuntimeException e) {
+                return null;
+            }
+        }
+    }
+
+}
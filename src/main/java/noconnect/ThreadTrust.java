@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import java.util.concurrent.Callable;
+
+/*
+ * Per-thread state of the thread stage in URLSecMgr#processHost.
+ * The "allowed.thread" verdict is kept until the thread is renamed or a new policy is published,
+ * and a trusted scope opened through NoConnect#runTrusted allows everything with one counter check.
+ * An internal scope is the work of NoConnect itself, its checks are neither recorded nor audited.
+ * */
+final class ThreadTrust {
+    private static final ThreadLocal<ThreadTrust> CURRENT = ThreadLocal.withInitial(ThreadTrust::new);
+
+    private int trustedDepth;
+    private int internalDepth;
+    private String name;
+    private int policyVersion;
+    private boolean allowedName;
+
+    private ThreadTrust() {
+    }
+
+    static ThreadTrust current() {
+        return CURRENT.get();
+    }
+
+    static void runTrusted(Runnable task) {
+        ThreadTrust trust = current();
+        trust.trustedDepth++;
+        try {
+            task.run();
+        } finally {
+            trust.trustedDepth--;
+        }
+    }
+
+    static <T> T callTrusted(Callable<T> task) throws Exception {
+        ThreadTrust trust = current();
+        trust.trustedDepth++;
+        try {
+            return task.call();
+        } finally {
+            trust.trustedDepth--;
+        }
+    }
+
+    static void runInternal(Runnable task) {
+        ThreadTrust trust = current();
+        trust.internalDepth++;
+        try {
+            task.run();
+        } finally {
+            trust.internalDepth--;
+        }
+    }
+
+    boolean isTrusted() {
+        return trustedDepth > 0;
+    }
+
+    boolean isInternal() {
+        return internalDepth > 0;
+    }
+
+    boolean isAllowedThread(Policy policy, String threadName) {
+        // Policy versions start at 1, so the first call always computes
+        if (policy.version != policyVersion || !threadName.equals(name)) {
+            allowedName = policy.isAllowedThread(threadName);
+            name = threadName;
+            policyVersion = policy.version;
+        }
+        return allowedName;
+    }
+
+}
@@ -0,0 +1,182 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLPermission;
+import java.net.UnknownHostException;
+import java.util.function.Function;
+import java.util.function.ObjIntConsumer;
+
+/*
+ * Checks of the TRANSFORMER enforcement, URLSecMgr is used as the policy engine without being installed.
+ * Transformed classes are defined by the game class loader which cannot see the classes of this transformation
+ * service, they find the engine through the platform MBeanServer and keep it from their static initializer.
+ * Lookups of transformed classes are answered here, from the addresses NoConnect already resolved.
+ * */
+final class TransformerEngine implements ObjIntConsumer<Object>, Function<String, InetAddress[]>, NoConnectEngineMBean {
+    static final String OBJECT_NAME = "noconnect:type=Engine";
+    static final String ATTRIBUTE = "Engine";
+
+    private final URLSecMgr secMgr;
+
+    TransformerEngine(URLSecMgr secMgr) {
+        this.secMgr = secMgr;
+    }
+
+    /**
+     * Register before any transformed class is initialized. The first registration of the name wins,
+     * a name already taken would hand transformed classes another object, so it fails the launch.
+     */
+    void publish() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(this, NoConnectEngineMBean.class), new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new IllegalStateException("Unable to register " + OBJECT_NAME + ", transformed classes would not be checked", e);
+        }
+    }
+
+    @Override
+    public Object getEngine() {
+        return this;
+    }
+
+    /**
+     * Called before a network call of a transformed class, with the address it is about to use
+     *
+     * @param port the port of a host or address, -1 when the target carries its own port or for a lookup
+     */
+    @Override
+    public void accept(Object target, int port) {
+        if (target instanceof String) {
+            String host = (String) target;
+            if (port == -1) {
+                checkLookup(host);
+            } else {
+                secMgr.checkConnect(host, port);
+            }
+        } else if (target instanceof InetSocketAddress) {
+            InetSocketAddress address = (InetSocketAddress) target;
+            if (address.isUnresolved()) {
+                secMgr.checkConnect(address.getHostString(), address.getPort());
+            } else {
+                secMgr.checkConnect(address.getAddress().getHostAddress(), address.getPort());
+            }
+        } else if (target instanceof InetAddress) {
+            secMgr.checkConnect(((InetAddress) target).getHostAddress(), port);
+        } else if (target instanceof DatagramPacket) {
+            DatagramPacket packet = (DatagramPacket) target;
+            // a packet of a connected socket may have no address
+            if (packet.getAddress() != null) {
+                secMgr.checkConnect(packet.getAddress().getHostAddress(), packet.getPort());
+            }
+        } else if (target instanceof URI) {
+            URI uri = (URI) target;
+            checkURL(uri.toString(), uri.getScheme(), uri.getHost(), uri.getPort());
+        } else if (target instanceof URL) {
+            URL url = (URL) target;
+            checkURL(url.toString(), url.getProtocol(), url.getHost(), url.getPort());
+        }
+    }
+
+    /**
+     * Replaces InetAddress.getAllByName in transformed classes.
+     * A denied name fails before any query, an allowed name is served from the resolution cache.
+     */
+    @Override
+    public InetAddress[] apply(String host) {
+        try {
+            return lookup(host);
+        } catch (UnknownHostException e) {
+            return ExceptionUtils.rethrow(e);
+        }
+    }
+
+    private InetAddress[] lookup(String host) throws UnknownHostException {
+        // the loopback or a literal, InetAddress does not query them
+        if (host == null || host.isEmpty() || HostAddress.parseLocal(host).isIP()) {
+            return InetAddress.getAllByName(host);
+        }
+        checkLookup(host);
+        // not resolved by NoConnect when allowed by audit mode or a trusted thread
+        InetAddress[] cached = secMgr.getResolutionCache().getAddresses(host);
+        if (cached == null) {
+            return InetAddress.getAllByName(host);
+        }
+        if (cached.length == 0) {
+            throw new UnknownHostException(host);
+        }
+        return cached.clone();
+    }
+
+    private void checkLookup(String host) {
+        // literals are not looked up, InetAddress does not check them either
+        if (host == null || HostAddress.parseLocal(host).isIP()) {
+            return;
+        }
+        try {
+            secMgr.checkConnect(host, -1);
+        } catch (Exception e) {
+            // a lookup is expected to fail with UnknownHostException
+            if (e instanceof UnknownHostException) {
+                throw e;
+            }
+            UnknownHostException denied = new UnknownHostException(e.getMessage());
+            denied.initCause(e);
+            ExceptionUtils.rethrow(denied);
+        }
+    }
+
+    private void checkURL(String url, String scheme, String host, int port) {
+        int defaultPort = getDefaultPort(scheme);
+        // file, jar and other local URL
+        if (defaultPort == -1 || host == null || host.isEmpty()) {
+            return;
+        }
+        URLPermission permission;
+        try {
+            permission = new URLPermission(url);
+        } catch (IllegalArgumentException e) {
+            permission = null; // not a URL the JDK would request, the host is still checked
+        }
+        if (permission != null) {
+            secMgr.checkPermission(permission);
+        }
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        secMgr.checkConnect(host, port == -1 ? defaultPort : port);
+    }
+
+    private static int getDefaultPort(String scheme) {
+        if ("http".equalsIgnoreCase(scheme) || "ws".equalsIgnoreCase(scheme)) {
+            return 80;
+        }
+        if ("https".equalsIgnoreCase(scheme) || "wss".equalsIgnoreCase(scheme)) {
+            return 443;
+        }
+        if ("ftp".equalsIgnoreCase(scheme)) {
+            return 21;
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return "NoConnect enforcement engine";
+    }
+
+}
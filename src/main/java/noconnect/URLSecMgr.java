@@ -4,9 +4,7 @@
 
 package noconnect;
 
-import com.google.common.net.InetAddresses;
 import com.google.common.net.InternetDomainName;
-import it.unimi.dsi.fastutil.objects.Object2ObjectLinkedOpenHashMap;
 import noconnect.Config.LogType;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.logging.log4j.LogManager;
@@ -18,18 +16,21 @@ import org.apache.logging.log4j.core.LoggerContext;
 import org.apache.logging.log4j.core.config.LoggerConfig;
 import org.apache.logging.log4j.core.filter.MarkerFilter;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.net.InetAddress;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.net.SocketPermission;
 import java.net.URLPermission;
 import java.net.UnknownHostException;
+import java.nio.file.Path;
 import java.security.Permission;
-import java.util.Collections;
 import java.util.EnumSet;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Map;
-import java.util.stream.Stream;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 final class URLSecMgr extends SecurityManager {
     private static final Logger LOGGER = LogManager.getLogger("NoConnect");
@@ -39,22 +40,51 @@ final class URLSecMgr extends SecurityManager {
     private static final Marker URL_MARKER = MarkerManager.getMarker("NC_URL");
     private static final Marker RESOLVE_MARKER = MarkerManager.getMarker("NC_RESOLVE");
     private static final Marker SOCKET_MARKER = MarkerManager.getMarker("NC_SOCKET");
-    private static final Marker INTERFACE_MARKER = MarkerManager.getMarker("NC_INTERFACE");
 
-    private static final Map<String, String> IP_CACHE = new Object2ObjectLinkedOpenHashMap<>();
     private static final String hostName = getHostName();
-    private static final HashSet<InetAddress> hostAddress = getAllHostAddress();
 
-    private final ThreadLocal<Boolean> isRecursive = ThreadLocal.withInitial(() -> Boolean.FALSE);
+    private final ResolutionCache ipCache = new ResolutionCache(Config.getCacheMaxSize(), Config.getCacheTtl());
+    private final VerdictCache verdictCache = new VerdictCache(Config.getCacheMaxSize(), Config.getVerdictTtl());
+    private final RateLimiter rateLimiter = new RateLimiter(Config.getCacheMaxSize());
+    private final Metrics metrics = new Metrics(Config.isMetricsEnabled(), ipCache);
+    private final AuditSink auditSink = new AuditSink(Config.isAuditLogEnabled(), Config.getAuditLogBufferSize(),
+            Config.getAuditLogWindow());
+    private final AuditRecorder auditRecorder;
+    private final HostResolver hostResolver;
+    private final CallerAttribution callerAttribution = new CallerAttribution();
+    private final ModAttribution modAttribution = new ModAttribution();
+    private final LocalAddresses localAddresses = new LocalAddresses();
+    // exact permission class -> check, other permissions are allowed without looking at them
+    private final Map<Class<?>, Consumer<Permission>> permissionChecks = new IdentityHashMap<>();
+
+    static {
+        // once for the JVM, instead of swapping the handler on every check or chaining it per instance
+        Thread.UncaughtExceptionHandler previousHandler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler((t, e) -> {
+            onUnknownError(t, e);
+            if (previousHandler != null) {
+                previousHandler.uncaughtException(t, e);
+            }
+        });
+    }
 
     public URLSecMgr() {
+        this(NetworkUtil::getIPFromHost);
+    }
+
+    /**
+     * @param lookup resolves the hosts of the ResolutionCache, null if the host does not resolve
+     */
+    URLSecMgr(Function<String, InetAddress[]> lookup) {
         super();
+        hostResolver = new HostResolver(ipCache, metrics, lookup);
+        auditRecorder = new AuditRecorder(host -> getLookupAddresses(host, lookup));
 
         LoggerConfig logCfg = ((LoggerContext) LogManager.getContext(false))
                 .getConfiguration()
                 .getLoggerConfig("NoConnect");
 
-        LogType logType = Config.getMode();
+        LogType logType = Policy.get().logType;
 
         if (EnumSet.of(LogType.NONE).contains(logType)) {
             logCfg.addFilter(MarkerFilter.createFilter(ALLOW_MARKER.getName(), Filter.Result.DENY, Filter.Result.NEUTRAL));
@@ -67,6 +97,13 @@ final class URLSecMgr extends SecurityManager {
             logCfg.addFilter(MarkerFilter.createFilter(RESOLVE_MARKER.getName(), Filter.Result.DENY, Filter.Result.NEUTRAL));
             logCfg.addFilter(MarkerFilter.createFilter(SOCKET_MARKER.getName(), Filter.Result.DENY, Filter.Result.NEUTRAL));
         }
+
+        // held weakly, an instance that is not installed (benchmarks, tests) does not stay registered
+        Policy.addListener(new PolicyListener(this));
+
+        permissionChecks.put(URLPermission.class, this::checkURLPermission);
+        permissionChecks.put(RuntimePermission.class, URLSecMgr::checkRuntimePermission);
+        permissionChecks.put(SocketPermission.class, this::checkSocketPermission);
     }
 
     @Override
@@ -89,132 +126,392 @@ final class URLSecMgr extends SecurityManager {
         processPerm(perm);
     }
 
+    /*
+     * Checks below are not about connections, they return before a Permission is built.
+     * The JDK would otherwise create a FilePermission, PropertyPermission... for each call into checkPermission.
+     * */
     @Override
     public void checkPackageAccess(String pkg) {
         // noop for performance reason
     }
 
-    // Start of handling
-    @SuppressWarnings("UnstableApiUsage")
-    private void processHost(String host, int port) {
-        Thread.UncaughtExceptionHandler originalErrHandler = Thread.getDefaultUncaughtExceptionHandler();
-        Thread.setDefaultUncaughtExceptionHandler(URLSecMgr::onUnknownError);
+    @Override
+    public void checkPackageDefinition(String pkg) {
+    }
+
+    @Override
+    public void checkCreateClassLoader() {
+    }
+
+    @Override
+    public void checkAccess(Thread t) {
+    }
+
+    @Override
+    public void checkAccess(ThreadGroup g) {
+    }
+
+    @Override
+    public void checkExit(int status) {
+    }
+
+    @Override
+    public void checkExec(String cmd) {
+    }
+
+    @Override
+    public void checkLink(String lib) {
+    }
+
+    @Override
+    public void checkRead(FileDescriptor fd) {
+    }
+
+    @Override
+    public void checkRead(String file) {
+    }
 
-        boolean isIP = InetAddresses.isInetAddress(host);
-        InetAddress addr = isIP ? InetAddresses.forString(host) : null;
+    @Override
+    public void checkRead(String file, Object context) {
+    }
 
-        if ((isIP && addr.isLoopbackAddress()) || "localhost".equals(host) || host.equals(hostName)) {
-            LOGGER.trace(SOCKET_MARKER, "Ignoring localhost {} {}", () -> host, () -> port);
+    @Override
+    public void checkWrite(FileDescriptor fd) {
+    }
+
+    @Override
+    public void checkWrite(String file) {
+    }
+
+    @Override
+    public void checkDelete(String file) {
+    }
+
+    @Override
+    public void checkListen(int port) {
+    }
+
+    @Override
+    public void checkAccept(String host, int port) {
+    }
+
+    @Override
+    public void checkMulticast(InetAddress maddr) {
+    }
+
+    @Override
+    public void checkPropertiesAccess() {
+    }
+
+    @Override
+    public void checkPropertyAccess(String key) {
+    }
+
+    @Override
+    public void checkPrintJobAccess() {
+    }
+
+    @Override
+    public void checkSetFactory() {
+    }
+
+    @Override
+    public void checkSecurityAccess(String target) {
+    }
+
+    // Start of handling
+    private void processHost(String host, int port) {
+        Policy policy = Policy.get();
+        // NoConnect's own lookups, allowed without a metric or audit event each refresh
+        if (!policy.enabled || ThreadTrust.current().isInternal()) {
             return;
         }
+        long start = metrics.enabled ? System.nanoTime() : 0;
+        // parsed once per check, reused by every stage below
+        HostAddress address = HostAddress.parseLocal(host);
+        String mod = null;
+        Verdict verdict = checkLocal(host, port, address);
+        try {
+            if (verdict == null) {
+                // the stack is only walked when a mod rule or the audit log needs the mod
+                if (policy.modScoped || !policy.modRates.isEmpty() || auditSink.enabled) {
+                    mod = modAttribution.getMod(getClassContext());
+                }
+                // host names only, an IP is connected after its host was checked; nested checks of a lookup are free
+                if (policy.rateLimited && !address.isIP() && !isRecursiveCall()) {
+                    RateLimiter.Bucket limited = rateLimiter.acquire(policy, host, mod);
+                    if (limited != null) {
+                        verdict = Verdict.RATE_LIMITED;
+                        rejectLimited(limited, host, port, mod);
+                    }
+                }
+                verdict = checkCached(policy, host, port, address, mod);
+            }
+            if (verdict == null) {
+                verdict = checkHost(policy, host, port, address, mod);
+            }
+        } finally {
+            // a denial leaves by exception
+            Verdict result = verdict == null ? Verdict.DENIED : verdict;
+            if (metrics.enabled) {
+                metrics.recordConnect(result, host, System.nanoTime() - start);
+            }
+            if (auditSink.enabled && result != Verdict.LOOPBACK) {
+                // part of the aggregation key, sampled as the callers of URL checks
+                String callers = null;
+                if (policy.logCaller && callerAttribution.shouldSample(policy.logCallerSample)) {
+                    callers = callerAttribution.attributeConnect(getClassContext());
+                }
+                auditSink.connect(host, port, result, callers, mod);
+            }
+        }
+    }
 
-        // undetermined port
-        boolean portRequest = (port == -1);
+    /*
+     * First tier, localhost and IP that are already approved.
+     * No allocation, no lock and no global state write, unless the logging below is enabled.
+     * @return null if the heavier checks must run
+     * */
+    private Verdict checkLocal(String host, int port, HostAddress address) {
+        if (address.isLoopback() || "localhost".equals(host) || host.equals(hostName)) {
+            if (LOGGER.isTraceEnabled(SOCKET_MARKER)) {
+                LOGGER.trace(SOCKET_MARKER, "Ignoring localhost {} {}", host, port);
+            }
+            return Verdict.LOOPBACK;
+        }
 
         // allow java 11 HttpClient to work. It required host address for internal processing?
-        if (portRequest && isIP) {
-            final InetAddress ipAddr = InetAddresses.forString(host);
-            LOGGER.trace(SOCKET_MARKER, "IP Type: {}", ipAddr.getClass().toString());
-
-            boolean matchHostAddress = hostAddress.contains(ipAddr);
-            LOGGER.trace(SOCKET_MARKER, "Host: {}, IPAddr: {}, Match, {}", host, ipAddr, matchHostAddress);
-
-            if (matchHostAddress) {
+        if (port == -1 && localAddresses.contains(address)) {
+            if (LOGGER.isDebugEnabled(SOCKET_MARKER)) {
                 LOGGER.debug(SOCKET_MARKER, "Allowed current host address {}", host);
-                return;
             }
+            return Verdict.LOOPBACK;
         }
+        return null;
+    }
 
-
-        if (isIP && (IP_CACHE.containsKey(host) || Config.getAllowedIPs().contains(host))) {
-            if (portRequest) {
-                LOGGER.debug(ALLOW_MARKER, "Allowed IP (request) - {}:{}/{}",
-                        host, port, IP_CACHE.getOrDefault(host, "not_cached"));
-            } else {
-                LOGGER.debug(ALLOW_MARKER, "Allowed IP - {}:{}/{}",
-                        host, port, IP_CACHE.getOrDefault(host, "not_cached"));
+    private Verdict checkCached(Policy policy, String host, int port, HostAddress address, String mod) {
+        if (!address.isIP()) {
+            return null;
+        }
+        String[] cachedHosts = ipCache.get(host);
+        if (cachedHosts == null) {
+            return null;
+        }
+        Policy.ModRules modRules = policy.getModRules(mod);
+        // with port or mod scoped hosts the IP is allowed only where one of its hosts is
+        for (String cachedHost : cachedHosts) {
+            boolean allowed = modRules != null ? modRules.isAllowedHost(cachedHost, port)
+                    : !policy.portScopedHosts || policy.isAllowedHost(cachedHost, port);
+            if (allowed) {
+                if (LOGGER.isDebugEnabled(ALLOW_MARKER)) {
+                    LOGGER.debug(ALLOW_MARKER, port == -1 ? "Allowed IP (request) - {}:{}/{}{}" : "Allowed IP - {}:{}/{}{}",
+                            host, port, cachedHost, byMod(mod));
+                }
+                return Verdict.CACHED_IP;
             }
-            return;
         }
+        return null;
+    }
+
+    @SuppressWarnings("UnstableApiUsage")
+    private Verdict checkHost(Policy policy, String host, int port, HostAddress address, String mod) {
+        // undetermined port
+        boolean portRequest = (port == -1);
+        boolean isIP = address.isIP();
 
         // Thread Allow
+        ThreadTrust trust = ThreadTrust.current();
+        if (trust.isTrusted()) {
+            LOGGER.debug(ALLOW_MARKER, "Allowed trusted scope - {}:{}", host, port);
+            return Verdict.ALLOWED_THREAD;
+        }
         String threadName = Thread.currentThread().getName();
-        if (Config.getAllowedThread().stream().anyMatch(threadName::startsWith)) {
+        if (trust.isAllowedThread(policy, threadName)) {
             LOGGER.info(ALLOW_MARKER, "Allowed thread: [{}] - {}:{}", threadName, host, port);
-            return;
+            return Verdict.ALLOWED_THREAD;
+        }
+
+        Policy.ModRules modRules = policy.getModRules(mod);
+        if (modRules != null) {
+            return checkMod(policy, modRules, mod, host, port, address);
+        }
+        // the lookup of a host resolved for a mod or the allowed lists, resolver threads have no mod to attribute
+        if (portRequest && isRecursiveCall() && policy.allowedHosts.matches(host)) {
+            return Verdict.ALLOWED_HOST;
+        }
+
+        if (isIP && policy.isAllowedIP(address, port)) {
+            if (portRequest) {
+                LOGGER.debug(ALLOW_MARKER, "Allowed IP (request) - {}:{}/{}{}", host, port, "not_cached", byMod(mod));
+            } else {
+                LOGGER.debug(ALLOW_MARKER, "Allowed IP - {}:{}/{}{}", host, port, "not_cached", byMod(mod));
+            }
+            return Verdict.ALLOWED_IP;
+        }
+
+        VerdictCache.Entry verdict = verdictCache.get(host, port);
+        if (verdict != null) {
+            if (verdict.verdict == Verdict.DENIED) {
+                rejectRepeated(verdict, host, port, mod);
+            }
+            // resolve again only when IP of the host expired from the cache, unlisted hosts are not resolved
+            if (verdict.verdict == Verdict.UNLISTED || isRecursiveCall() || ipCache.isResolved(host)) {
+                return verdict.verdict;
+            }
         }
 
         // Allow hosts
         if (InternetDomainName.isValid(host)/* && InternetDomainName.from(host).hasPublicSuffix()*/) {
-            boolean can = Config.getAllowedHosts().stream().anyMatch(s -> NetworkUtil.matchesHostname(host, s));
+            boolean can = policy.isAllowedHost(host, port);
             if (isRecursiveCall() && can) {
-                return;
+                return Verdict.ALLOWED_HOST;
             }
             if (can) {
-                isRecursive.set(Boolean.TRUE);
-                try {
-                    if (port != -1) {
-                        LOGGER.info(ALLOW_MARKER, "Allowed Host - {}:{}", host, port);
-                    } else {
-                        LOGGER.debug(RESOLVE_MARKER, "Resolve Host - {}:{}", host, port);
-                    }
-                    addHostToCache(host, port); // getIPFromHost will invoke checkConnect
-                    isRecursive.set(Boolean.FALSE);
-                } finally {
-                    isRecursive.set(Boolean.FALSE);
-                }
-                return;
+                allowHost(host, port, mod);
+                verdictCache.put(host, port, Verdict.ALLOWED_HOST);
+                return Verdict.ALLOWED_HOST;
             }
         }
 
-        if (Config.isAuditMode()) {
-            LOGGER.info("Audit Mode, Allowing host: {}:{}", host, port);
-            return;
+        // Denylist mode, hosts and IP not in the lists
+        if (policy.denyList != null && !policy.denyList.matches(host)) {
+            if (!isRecursiveCall()) {
+                LOGGER.debug(ALLOW_MARKER, "Allowed unlisted - {}:{}{}", host, port, byMod(mod));
+                verdictCache.put(host, port, Verdict.UNLISTED);
+            }
+            return Verdict.UNLISTED;
+        }
+
+        Verdict allowed = checkAuditOrDns(policy, host, port, isIP, mod);
+        if (allowed != null) {
+            return allowed;
+        }
+
+        VerdictCache.Entry denied = verdictCache.put(host, port, Verdict.DENIED);
+        if (denied.isRenewed()) {
+            rejectRepeated(denied, host, port, mod);
+        }
+        return deny(host, port, mod);
+    }
+
+    /*
+     * A mod listed in the config, only its own hosts and IP are allowed.
+     * Not kept in the verdict cache, which does not tell mods apart.
+     * */
+    @SuppressWarnings("UnstableApiUsage")
+    private Verdict checkMod(Policy policy, Policy.ModRules rules, String mod, String host, int port, HostAddress address) {
+        if (address.isIP()) {
+            if (rules.isAllowedIP(address, port)) {
+                LOGGER.debug(ALLOW_MARKER, "Allowed IP - {}:{}/{}{}", host, port, "not_cached", byMod(mod));
+                return Verdict.ALLOWED_MOD;
+            }
+        } else if (InternetDomainName.isValid(host) && rules.isAllowedHost(host, port)) {
+            if (!isRecursiveCall()) {
+                allowHost(host, port, mod);
+            }
+            return Verdict.ALLOWED_MOD;
+        }
+        Verdict allowed = checkAuditOrDns(policy, host, port, address.isIP(), mod);
+        return allowed != null ? allowed : deny(host, port, mod);
+    }
+
+    private void allowHost(String host, int port, String mod) {
+        if (mod == null && port != -1 && LOGGER.isInfoEnabled(ALLOW_MARKER)) {
+            mod = modAttribution.getMod(getClassContext());
+        }
+        if (port != -1) {
+            LOGGER.info(ALLOW_MARKER, "Allowed Host - {}:{}{}", host, port, byMod(mod));
+        } else {
+            LOGGER.debug(RESOLVE_MARKER, "Resolve Host - {}:{}{}", host, port, byMod(mod));
+        }
+        // usually resolved ahead by the background resolver
+        if (!ipCache.isResolved(host)) {
+            hostResolver.resolve(host); // getIPFromHost will invoke checkConnect
+        }
+    }
+
+    /**
+     * @return the addresses of a host looked up in audit mode, from the JDK cache the lookup just filled
+     */
+    private InetAddress[] getLookupAddresses(String host, Function<String, InetAddress[]> lookup) {
+        InetAddress[] cached = ipCache.getAddresses(host);
+        if (cached != null) {
+            return cached;
+        }
+        InetAddress[][] resolved = new InetAddress[1][];
+        // not a lookup of the mod, its nested check is not recorded
+        ThreadTrust.runInternal(() -> resolved[0] = lookup.apply(host));
+        return resolved[0];
+    }
+
+    /**
+     * @return null if the connection is neither allowed by audit mode nor a DNS query
+     */
+    private Verdict checkAuditOrDns(Policy policy, String host, int port, boolean isIP, String mod) {
+        if (policy.auditMode) {
+            LOGGER.info("Audit Mode, Allowing host: {}:{}{}", host, port, byMod(mod));
+            boolean dns = port == 53 && policy.allowDns;
+            if (!dns && !auditRecorder.recordKnown(host, port, isIP)) {
+                auditRecorder.recordNew(host, port, isIP, CallerAttribution.getConnectCaller(getClassContext()));
+            }
+            return Verdict.AUDIT;
         }
 
-        if (port == 53 && Config.allowAllDns()) {
+        if (port == 53 && policy.allowDns) {
             LOGGER.debug(SOCKET_MARKER, "Allow DNS {}:{}", host, port);
-            return;
+            return Verdict.DNS;
         }
+        return null;
+    }
 
+    private Verdict deny(String host, int port, String mod) {
+        boolean portRequest = (port == -1);
+        // the mod of a denial is only looked for when it is logged
+        if (mod == null && (portRequest ? LOGGER.isDebugEnabled(REJECT_MARKER) : LOGGER.isInfoEnabled(REJECT_MARKER))) {
+            mod = modAttribution.getMod(getClassContext());
+        }
         if (!portRequest) {
-            LOGGER.info(REJECT_MARKER, "Denied - {}:{}", host, port);
+            LOGGER.info(REJECT_MARKER, "Denied - {}:{}{}", host, port, byMod(mod));
         } else {
-            LOGGER.debug(REJECT_MARKER, "Denied (request) - {}:{}", host, port);
+            LOGGER.debug(REJECT_MARKER, "Denied (request) - {}:{}{}", host, port, byMod(mod));
         }
 
-        Thread.setDefaultUncaughtExceptionHandler(originalErrHandler);
-
-        IOException ex = new IOException("Denied - " + host + ":" + port);
+        if (portRequest && CallerAttribution.isCalledFrom(getClassContext(), "java.net.URLStreamHandler", 10)) {
+            // URLStreamHandler::getHostAddress falls back to null on the UnknownHostException of a lookup,
+            // prevent crash in URL::hashCode > URLStreamHandler > InetAddress stack
+            LOGGER.info(REJECT_MARKER, "Denied - {}:{}; Captured from URLStreamHandler, possible from URL::hashCode",
+                    host, port);
+        }
+        // same type as the repeated denials thrown from the verdict cache
+        IOException ex = VerdictCache.denied("Denied - " + host + ":" + port, port);
+        return ExceptionUtils.rethrow(ex); // checked exception without declaring
+    }
 
-        Class<?>[] classContext = getClassContext();
-        int maxStackCheckCount = Math.min(10, classContext.length - 1);
-        for (int i = 0; i < maxStackCheckCount; i++) {
-            Class<?> cls = classContext[i];
-            String className = cls.getName();
-            if ("java.net.URLStreamHandler".equals(className)) {
-                // make URLStreamHandler::getHostAddress fallback to null, as it catches "UnknownHostException"
-                // prevent crash in URL::hashCode > URLStreamHandler > InetAddress stack
-                ex = new UnknownHostException(ex.getMessage());
-                LOGGER.info(REJECT_MARKER, "{}; Captured from URLStreamHandler, possible from URL::hashCode",
-                        ex.getMessage());
-                break;
+    private void rejectRepeated(VerdictCache.Entry verdict, String host, int port, String mod) {
+        int suppressed = verdict.onRepeat();
+        if (suppressed > 0) {
+            // the mod of a repeated denial is only looked for when it is logged
+            if (mod == null) {
+                mod = modAttribution.getMod(getClassContext());
             }
+            LOGGER.info(REJECT_MARKER, "Denied - {}:{}{} (denied {} more times in the last {}s)",
+                    host, port, byMod(mod), suppressed, TimeUnit.NANOSECONDS.toSeconds(VerdictCache.LOG_WINDOW_NANOS));
         }
-
-        ExceptionUtils.rethrow(ex); // checked exception without declaring
+        ExceptionUtils.rethrow(verdict.denied()); // no stack walk
     }
 
-    private void addHostToCache(String host, int port) {
-        LOGGER.trace("Resolving Host - {}:{}", host, port);
-        InetAddress[] ip = NetworkUtil.getIPFromHost(host); // will invoke checkConnect
-        if (ip != null) {
-            Stream.of(ip).forEach(addr -> {
-                if (IP_CACHE.put(addr.getHostAddress(), host) == null) {
-                    LOGGER.debug("Allowed {}/{} into cache", host, addr.getHostAddress());
-                }
-            });
+    private static void rejectLimited(RateLimiter.Bucket bucket, String host, int port, String mod) {
+        if (bucket.onLimited()) {
+            LOGGER.info(REJECT_MARKER, "Rate limited - {}:{}{}, budget of {} exhausted", host, port, byMod(mod), bucket.key);
+        } else if (LOGGER.isDebugEnabled(REJECT_MARKER)) {
+            LOGGER.debug(REJECT_MARKER, "Rate limited - {}:{}{}", host, port, byMod(mod));
         }
+        ExceptionUtils.rethrow(bucket.limited(port)); // no stack walk
+    }
+
+    private static String byMod(String mod) {
+        return mod == null ? "" : " by " + mod;
     }
 
     private static String getHostName() {
@@ -226,111 +523,202 @@ final class URLSecMgr extends SecurityManager {
         return "localhost";
     }
 
-    private static HashSet<InetAddress> getAllHostAddress() {
-        HashSet<InetAddress> hostAddresses = new HashSet<>();
-        try {
-            final InetAddress localHost = InetAddress.getLocalHost(); // current host address
-            final String hostName = localHost.getHostName();
+    private boolean isRecursiveCall() {
+        return hostResolver.isResolving();
+    }
 
-            final InetAddress[] allHostsAddress = InetAddress.getAllByName(hostName);
-            Collections.addAll(hostAddresses, allHostsAddress);
+    ResolutionCache getResolutionCache() {
+        return ipCache;
+    }
 
-            return hostAddresses;
-        } catch (IOException e) {
-            LOGGER.error(INTERFACE_MARKER, "Error while getting all host address", e);
-            hostAddresses.add(InetAddress.getLoopbackAddress());
-            return hostAddresses;
-        }
+    AuditRecorder getAuditRecorder() {
+        return auditRecorder;
     }
 
-    private boolean isRecursiveCall() {
-        return isRecursive.get().equals(Boolean.TRUE);
+    Metrics getMetrics() {
+        return metrics;
     }
 
-    private void processPerm(Permission perm) {
-        if (perm instanceof URLPermission) {
-            try {
-                URL url = new URL(perm.getName());
-                Class<?>[] clsContext = getClassContext();
-                if (Config.isLogCaller()) {
-                    if ("https".equals(url.getProtocol())) {
-                        getHTTPSCaller(clsContext);
-                    } else if ("http".equals(url.getProtocol())) {
-                        getHTTPCaller(clsContext);
-                    } else {
-                        getGenericCaller(clsContext);
-                    }
-                }
+    /**
+     * Restore resolved hosts from the file and keep it up to date
+     */
+    void startResolutionFile(Path file) {
+        hostResolver.load(new ResolutionFile(file, Policy.get().hostsFingerprint));
+    }
 
-                boolean isWeb = "https".equals(url.getProtocol()) || "http".equals(url.getProtocol());
-                if (isWeb && url.getPort() == -1 /*Default Port*/) {
-                    LOGGER.info(URL_MARKER, "URL: {} Actions: {}", perm.getName(), perm.getActions());
-                } else if (isWeb) { // defined port
-                    LOGGER.warn(URL_MARKER, "Custom port URL: {} Actions: {}", perm.getName(), perm.getActions());
-                } else {
-                    LOGGER.warn(URL_MARKER, "Non web URL scheme detected, below URL is not HTTP(S).");
-                    LOGGER.warn(URL_MARKER, "URL: {} Actions: {}", perm.getName(), perm.getActions());
-                }
-                return;
-            } catch (MalformedURLException e) {
-                LOGGER.fatal(URL_MARKER, "Exception parsing URLPermission, {}", perm.getName());
-                LOGGER.fatal(URL_MARKER, "Exception parsing URL, this should never happen!", e);
-            }
-        }
-        if (perm instanceof RuntimePermission && "setSecurityManager".equals(perm.getName())) {
-            throw new SecurityException("Attempting to replace NoConnect Security Manager! " + perm.getActions());
-        }
+    /**
+     * Keep the addresses of the network interfaces up to date
+     */
+    void startLocalAddresses() {
+        localAddresses.start();
+    }
+
+    /**
+     * Resolve allowed hosts in the background before the game connects
+     */
+    void startResolver() {
+        hostResolver.start();
     }
 
-    private void getHTTPSCaller(Class<?>[] classContext) {
-        /*
-         * The last element is the class that called, default get first 4 from caller
-         * Ex: class ExampleHTTPSPackage.TargetClass
-         *     class Main <-- class that call target
-         * */
-        boolean hasHTTPS = false;
-        int printCount = 4;
+    /**
+     * Expose the metrics through JMX and the periodic summary
+     */
+    void startMetrics(int summaryInterval) {
+        metrics.start(summaryInterval);
+    }
 
-        for (int i = 0, count = 0; i < classContext.length && count < printCount; i++) {
-            String currentClass = classContext[i].getName();
+    /**
+     * Suggest allowed hosts into the file from the connections of audit mode
+     */
+    void startAuditRecorder(Path file) {
+        auditRecorder.start(file);
+    }
+
+    /**
+     * Write the audit log to the file from now on
+     */
+    void startAuditLog(Path file) {
+        auditSink.start(file);
+    }
 
-            if (!hasHTTPS) {
-                hasHTTPS = "sun.net.www.protocol.https.HttpsURLConnectionImpl".equals(currentClass);
-                continue;
+    private void processPerm(Permission perm) {
+        Consumer<Permission> check = permissionChecks.get(perm.getClass());
+        if (!metrics.enabled) {
+            if (check != null) {
+                check.accept(perm);
             }
-            LOGGER.debug("Possible Caller: {} ", currentClass);
-            count++;
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            if (check != null) {
+                check.accept(perm);
+            }
+        } finally {
+            metrics.recordPermission(System.nanoTime() - start);
         }
     }
 
-    private void getHTTPCaller(Class<?>[] classContext) {
-        //same as getHTTPSCaller except for http display
-        boolean hasHTTP = false;
-        int printCount = 4;
-        for (int i = 0, count = 0; (i < classContext.length) && count < printCount; i++) {
-            String currentClass = classContext[i].getName();
+    private void checkURLPermission(Permission perm) {
+        // parsed without java.net.URL, valid until the next URL check of this thread
+        UrlName url = UrlName.parseLocal(perm.getName());
+        if (url == null) {
+            LOGGER.fatal(URL_MARKER, "Exception parsing URLPermission, {}", perm.getName());
+            return;
+        }
+        Policy policy = Policy.get();
+        String protocol = url.scheme;
+        String callers = null;
+        if (policy.logCaller && callerAttribution.shouldSample(policy.logCallerSample)) {
+            callers = callerAttribution.attribute(getClassContext(), protocol);
+        }
+        String mod = auditSink.enabled ? modAttribution.getMod(getClassContext()) : null;
+        auditSink.url(perm.getName(), perm.getActions(), callers, mod);
+        if (!policy.isAllowedScheme(url.host, protocol)) {
+            if (mod == null) {
+                mod = modAttribution.getMod(getClassContext());
+            }
+            LOGGER.info(REJECT_MARKER, "Denied scheme - {}{}", perm.getName(), byMod(mod));
+            ExceptionUtils.rethrow(new IOException("Denied scheme - " + perm.getName()));
+        }
+        if (!policy.isAllowedUrl(url, perm.getActions())) {
+            if (mod == null) {
+                mod = modAttribution.getMod(getClassContext());
+            }
+            LOGGER.info(REJECT_MARKER, "Denied URL - {} Actions: {}{}", perm.getName(), perm.getActions(), byMod(mod));
+            // as a denied connection, HttpURLConnection and HttpClient fail before connecting
+            ExceptionUtils.rethrow(new IOException("Denied URL - " + perm.getName()));
+        }
 
-            if (!hasHTTP) {
-                String nextClass = classContext[Math.min(i + 1, classContext.length - 1)].getName();
-                boolean targetHTTP = "sun.net.www.protocol.http.HttpURLConnection".equals(currentClass);
-                boolean isNextSameHTTP = "sun.net.www.protocol.http.HttpURLConnection".equals(nextClass);
-                hasHTTP = targetHTTP && !isNextSameHTTP;
-                continue;
+        boolean isWeb = "https".equals(protocol) || "http".equals(protocol);
+        if (isWeb && url.port == -1 /*Default Port*/) {
+            if (callers == null) {
+                LOGGER.info(URL_MARKER, "URL: {} Actions: {}", perm.getName(), perm.getActions());
+            } else {
+                LOGGER.info(URL_MARKER, "URL: {} Actions: {} Possible Caller: {}",
+                        perm.getName(), perm.getActions(), callers);
+            }
+        } else if (isWeb) { // defined port
+            if (callers == null) {
+                LOGGER.warn(URL_MARKER, "Custom port URL: {} Actions: {}", perm.getName(), perm.getActions());
+            } else {
+                LOGGER.warn(URL_MARKER, "Custom port URL: {} Actions: {} Possible Caller: {}",
+                        perm.getName(), perm.getActions(), callers);
+            }
+        } else {
+            if (callers == null) {
+                LOGGER.warn(URL_MARKER, "Non web URL: {} Actions: {}", perm.getName(), perm.getActions());
+            } else {
+                LOGGER.warn(URL_MARKER, "Non web URL: {} Actions: {} Possible Caller: {}",
+                        perm.getName(), perm.getActions(), callers);
             }
-            LOGGER.debug("Possible Caller: {} ", currentClass);
-            count++;
         }
     }
 
-    private void getGenericCaller(Class<?>[] classContext) {
-        LOGGER.warn("Non web URL is requested, unable to get caller, printing all possible caller...");
-        for (Class<?> cls : classContext) {
-            LOGGER.warn(cls);
+    private static void checkRuntimePermission(Permission perm) {
+        if ("setSecurityManager".equals(perm.getName())) {
+            throw new SecurityException("Attempting to replace NoConnect Security Manager! " + perm.getActions());
+        }
+    }
+
+    /*
+     * Checked directly by some JDK clients (ie, HttpClient) instead of checkConnect.
+     * Only "host:port" with a single port is checked, wildcards and ranges are not connections.
+     * */
+    private void checkSocketPermission(Permission perm) {
+        if (!perm.getActions().contains("connect")) {
+            return;
+        }
+        String name = perm.getName();
+        int colon = name.lastIndexOf(':');
+        if (colon <= 0 || name.startsWith("*") || (name.indexOf(']') > colon)) {
+            return;
+        }
+        int port;
+        try {
+            port = Integer.parseInt(name.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            return; // a port range
+        }
+        String host = name.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
         }
+        processHost(host, port);
+    }
+
+    private void onPolicy(Policy policy) {
+        // resolved IP of hosts that are no longer allowed must not pass as cached
+        ipCache.retainHosts(policy.allowedHosts::matches);
+        verdictCache.clear();
+        rateLimiter.clear();
+        // through the weak listener, a collected instance stops pre-resolving
+        hostResolver.onPolicy(policy);
     }
 
     private static void onUnknownError(Thread t, Throwable e) {
         LOGGER.error("Error on: {}", t.getName(), e);
     }
 
+    /*
+     * Removes itself on the first policy published after its URLSecMgr was collected
+     * */
+    private static final class PolicyListener implements Consumer<Policy> {
+        private final WeakReference<URLSecMgr> secMgr;
+
+        private PolicyListener(URLSecMgr secMgr) {
+            this.secMgr = new WeakReference<>(secMgr);
+        }
+
+        @Override
+        public void accept(Policy policy) {
+            URLSecMgr current = secMgr.get();
+            if (current == null) {
+                Policy.removeListener(this);
+            } else {
+                current.onPolicy(policy);
+            }
+        }
+    }
+
 }
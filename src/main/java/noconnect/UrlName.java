@@ -0,0 +1,90 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import java.util.Locale;
+
+/*
+ * The name of an URLPermission split into scheme, host, port and path, without building a java.net.URL.
+ * The JDK builds the name as "scheme://authority/path", the path is kept as a range of the name.
+ * */
+final class UrlName {
+    private static final ThreadLocal<UrlName> PER_THREAD = ThreadLocal.withInitial(UrlName::new);
+
+    String name;
+    String scheme;
+    // as java.net.URL#getHost, an IPv6 address keeps its brackets
+    String host;
+    // -1 for the default port of the scheme
+    int port;
+    int pathStart;
+    int pathEnd;
+
+    /**
+     * Parse into the instance of the current thread, valid until the next call on this thread
+     *
+     * @return null if the name is not an URL
+     */
+    static UrlName parseLocal(String name) {
+        UrlName url = PER_THREAD.get();
+        return url.parse(name) ? url : null;
+    }
+
+    boolean parse(String name) {
+        int separator = name.indexOf("://");
+        if (separator <= 0) {
+            return false;
+        }
+        int authorityStart = separator + 3;
+        int authorityEnd = indexOfAny(name, authorityStart, "/?#");
+        int hostStart = name.lastIndexOf('@', authorityEnd - 1) + 1;
+        if (hostStart < authorityStart) {
+            hostStart = authorityStart;
+        }
+        int hostEnd;
+        if (hostStart < authorityEnd && name.charAt(hostStart) == '[') {
+            hostEnd = name.indexOf(']', hostStart);
+            if (hostEnd < 0 || hostEnd >= authorityEnd) {
+                return false;
+            }
+            hostEnd++;
+        } else {
+            hostEnd = name.indexOf(':', hostStart);
+            if (hostEnd < 0 || hostEnd > authorityEnd) {
+                hostEnd = authorityEnd;
+            }
+        }
+        int port = -1;
+        if (hostEnd < authorityEnd) {
+            if (name.charAt(hostEnd) != ':') {
+                return false;
+            }
+            for (int i = hostEnd + 1; i < authorityEnd; i++) {
+                char c = name.charAt(i);
+                if (c < '0' || c > '9' || port > 0xFFFF) {
+                    return false;
+                }
+                port = (port < 0 ? 0 : port * 10) + (c - '0');
+            }
+        }
+        this.name = name;
+        this.scheme = name.substring(0, separator).toLowerCase(Locale.ROOT);
+        this.host = name.substring(hostStart, hostEnd).toLowerCase(Locale.ROOT);
+        this.port = port;
+        this.pathStart = authorityEnd;
+        this.pathEnd = indexOfAny(name, authorityEnd, "?#");
+        return true;
+    }
+
+    private static int indexOfAny(String s, int from, String chars) {
+        for (int i = from; i < s.length(); i++) {
+            if (chars.indexOf(s.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return s.length();
+    }
+
+}
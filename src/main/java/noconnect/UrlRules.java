@@ -0,0 +1,258 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * Compiled form of "allowed.url", URL allowed by HTTP method, scheme, host and path prefix.
+ * A host with URL rules only allows requests matching one of them, other hosts are not restricted here.
+ * The rules of a host are found first, then the path is walked down a trie of its segments;
+ * each node passed is a prefix of the path and holds the rules ending there.
+ * */
+final class UrlRules {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final UrlRules EMPTY = new UrlRules(new HashMap<>(), new HashMap<>());
+
+    private final Map<String, Node> exact;
+    // "*.example.com" kept as "example.com"
+    private final Map<String, Node> wildcard;
+
+    private UrlRules(Map<String, Node> exact, Map<String, Node> wildcard) {
+        this.exact = exact;
+        this.wildcard = wildcard;
+    }
+
+    /**
+     * @param entries "GET,POST https://api.example.com/v1/profile", the methods are optional
+     */
+    static UrlRules compile(Collection<String> entries) {
+        if (entries.isEmpty()) {
+            return EMPTY;
+        }
+        Map<String, Builder> exact = new HashMap<>();
+        Map<String, Builder> wildcard = new HashMap<>();
+        for (String entry : entries) {
+            if (!add(entry.trim(), exact, wildcard)) {
+                LOGGER.warn("Ignoring invalid URL entry \"{}\", expected \"[METHODS] scheme://host/path\"", entry);
+            }
+        }
+        Map<String, Node> exactNodes = new HashMap<>();
+        exact.forEach((host, builder) -> exactNodes.put(host, builder.build()));
+        Map<String, Node> wildcardNodes = new HashMap<>();
+        wildcard.forEach((host, builder) -> wildcardNodes.put(host, builder.build()));
+        return new UrlRules(exactNodes, wildcardNodes);
+    }
+
+    private static boolean add(String entry, Map<String, Builder> exact, Map<String, Builder> wildcard) {
+        String[] parts = entry.split("\\s+");
+        if (parts.length < 1 || parts.length > 2) {
+            return false;
+        }
+        String[] methods = null;
+        if (parts.length == 2 && !"*".equals(parts[0])) {
+            methods = parts[0].toUpperCase(Locale.ROOT).split(",");
+        }
+        UrlName url = new UrlName();
+        if (!url.parse(parts[parts.length - 1]) || url.port != -1 || url.host.isEmpty()) {
+            return false;
+        }
+        boolean isWildcard = url.host.startsWith("*.");
+        Map<String, Builder> hosts = isWildcard ? wildcard : exact;
+        Builder node = hosts.computeIfAbsent(isWildcard ? url.host.substring(2) : url.host, h -> new Builder());
+        for (String segment : url.name.substring(url.pathStart, url.pathEnd).split("/")) {
+            if (!segment.isEmpty()) {
+                node = node.children.computeIfAbsent(segment, s -> new Builder());
+            }
+        }
+        node.rules.add(new Rule(url.scheme, methods));
+        return true;
+    }
+
+    boolean isEmpty() {
+        return exact.isEmpty() && wildcard.isEmpty();
+    }
+
+    /**
+     * @param actions of the URLPermission, "GET,POST:Header-Name"
+     * @return true if the host has no URL rule, or one of its rules allows the request
+     */
+    boolean isAllowed(UrlName url, String actions) {
+        if (isEmpty()) {
+            return true;
+        }
+        boolean restricted = false;
+        Node node = exact.get(url.host);
+        if (node != null) {
+            if (node.allows(url, actions)) {
+                return true;
+            }
+            restricted = true;
+        }
+        if (!wildcard.isEmpty()) {
+            String host = url.host;
+            for (int dot = host.indexOf('.'); dot >= 0; dot = host.indexOf('.', dot + 1)) {
+                node = wildcard.get(host.substring(dot + 1));
+                if (node != null) {
+                    if (node.allows(url, actions)) {
+                        return true;
+                    }
+                    restricted = true;
+                }
+            }
+        }
+        return !restricted;
+    }
+
+    private static final class Rule {
+        private final String scheme;
+        // null for any method
+        private final String[] methods;
+
+        private Rule(String scheme, String[] methods) {
+            this.scheme = scheme;
+            this.methods = methods;
+        }
+
+        private boolean allows(String scheme, String actions) {
+            if (!this.scheme.equals(scheme)) {
+                return false;
+            }
+            if (methods == null) {
+                return true;
+            }
+            int end = actions.indexOf(':');
+            if (end < 0) {
+                end = actions.length();
+            }
+            // every method of the permission must be allowed
+            int start = 0;
+            while (start < end) {
+                int comma = actions.indexOf(',', start);
+                int methodEnd = comma < 0 || comma > end ? end : comma;
+                if (!hasMethod(actions, start, methodEnd)) {
+                    return false;
+                }
+                start = methodEnd + 1;
+            }
+            return true;
+        }
+
+        private boolean hasMethod(String actions, int start, int end) {
+            for (String method : methods) {
+                if (method.length() == end - start && actions.regionMatches(start, method, 0, method.length())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class Node {
+        private final String[] segments;
+        private final Node[] children;
+        private final Rule[] rules;
+
+        private Node(String[] segments, Node[] children, Rule[] rules) {
+            this.segments = segments;
+            this.children = children;
+            this.rules = rules;
+        }
+
+        private boolean allows(UrlName url, String actions) {
+            String path = url.name;
+            // "/v1/profile/../telemetry", "/v1/profile%2f..%2ftelemetry" or "/v1/profile\..\telemetry"
+            // must not pass as under "/v1/profile"
+            if (hasDotSegment(path, url.pathStart, url.pathEnd)) {
+                return false;
+            }
+            Node node = this;
+            int start = url.pathStart;
+            while (true) {
+                for (Rule rule : node.rules) {
+                    if (rule.allows(url.scheme, actions)) {
+                        return true;
+                    }
+                }
+                while (start < url.pathEnd && path.charAt(start) == '/') {
+                    start++;
+                }
+                if (start == url.pathEnd) {
+                    return false;
+                }
+                int end = path.indexOf('/', start);
+                if (end < 0 || end > url.pathEnd) {
+                    end = url.pathEnd;
+                }
+                node = node.child(path, start, end);
+                if (node == null) {
+                    return false;
+                }
+                start = end;
+            }
+        }
+
+        private Node child(String path, int start, int end) {
+            for (int i = 0; i < segments.length; i++) {
+                String segment = segments[i];
+                if (segment.length() == end - start && path.regionMatches(start, segment, 0, segment.length())) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        private static boolean hasDotSegment(String path, int start, int end) {
+            int dots = 0;
+            for (int i = start; i <= end; i++) {
+                char c = i == end ? '/' : path.charAt(i);
+                if (c == '/') {
+                    if (dots == 1 || dots == 2) {
+                        return true;
+                    }
+                    dots = 0;
+                } else if (c == '\\' || c == '%' && (path.regionMatches(true, i, "%2f", 0, 3)
+                        || path.regionMatches(true, i, "%5c", 0, 3))) {
+                    // a backslash or an encoded separator, a server may take it for "/" the rules never see
+                    return true;
+                } else if (dots >= 0 && c == '.') {
+                    dots++;
+                } else if (dots >= 0 && c == '%' && path.regionMatches(true, i, "%2e", 0, 3)) {
+                    // encoded dot, decoded by the server
+                    dots++;
+                    i += 2;
+                } else {
+                    // not only dots, until the next segment
+                    dots = -1;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class Builder {
+        private final Map<String, Builder> children = new LinkedHashMap<>();
+        private final List<Rule> rules = new ArrayList<>();
+
+        private Node build() {
+            String[] segments = children.keySet().toArray(new String[0]);
+            Node[] nodes = new Node[segments.length];
+            for (int i = 0; i < segments.length; i++) {
+                nodes[i] = children.get(segments[i]).build();
+            }
+            return new Node(segments, nodes, rules.toArray(new Rule[0]));
+        }
+    }
+
+}
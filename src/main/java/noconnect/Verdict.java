@@ -0,0 +1,26 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+/*
+ * Outcome of a connection check, in the order URLSecMgr evaluates them
+ * */
+enum Verdict {
+    LOOPBACK,
+    CACHED_IP,
+    ALLOWED_IP,
+    ALLOWED_THREAD,
+    ALLOWED_HOST,
+    ALLOWED_MOD,
+    UNLISTED,
+    AUDIT,
+    DNS,
+    DENIED,
+    RATE_LIMITED;
+
+    boolean isAllowed() {
+        return this != DENIED && this != RATE_LIMITED;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Short lived (host, port) -> verdict cache, so a mod retrying a blocked URL in a loop
+ * does not run the whole check, stack walk and log line on every attempt.
+ * Entries of a host are kept in a small copy-on-write array, lookups do not allocate.
+ * Must be cleared whenever a new Policy is published.
+ * */
+final class VerdictCache {
+    static final long LOG_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(60);
+    // a host hammered on many ports is not worth caching port by port
+    private static final int MAX_PORTS_PER_HOST = 16;
+
+    private final ConcurrentHashMap<String, Entry[]> hosts = new ConcurrentHashMap<>();
+    private final int maxHosts;
+    private final long ttlNanos;
+
+    VerdictCache(int maxHosts, int ttlSeconds) {
+        this.maxHosts = Math.max(1, maxHosts);
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+    }
+
+    Entry get(String host, int port) {
+        Entry[] entries = hosts.get(host);
+        if (entries == null) {
+            return null;
+        }
+        for (Entry entry : entries) {
+            if (entry.port == port) {
+                return System.nanoTime() - entry.expiresAt > 0 ? null : entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A previous entry of the same (host, port) hands its log window to the new entry,
+     * so the deny log stays rate limited across expiry.
+     */
+    Entry put(String host, int port, Verdict verdict) {
+        if (ttlNanos <= 0) {
+            return new Entry(host, port, verdict, 0, null);
+        }
+        long now = System.nanoTime();
+        if (hosts.size() >= maxHosts && !hosts.containsKey(host)) {
+            // retries hit the same few hosts, dropping everything on overflow is good enough
+            hosts.clear();
+        }
+        Entry[] created = new Entry[1];
+        hosts.compute(host, (k, entries) -> {
+            Entry previous = null;
+            if (entries != null) {
+                for (Entry e : entries) {
+                    if (e.port == port) {
+                        previous = e;
+                    }
+                }
+            }
+            Entry entry = new Entry(host, port, verdict, now + ttlNanos, previous);
+            created[0] = entry;
+            if (entries == null) {
+                return new Entry[]{entry};
+            }
+            Entry[] updated = new Entry[Math.min(entries.length + 1, MAX_PORTS_PER_HOST)];
+            int count = 0;
+            updated[count++] = entry;
+            for (Entry e : entries) {
+                if (count == updated.length) {
+                    break;
+                }
+                if (e != previous && now - e.expiresAt <= 0) {
+                    updated[count++] = e;
+                }
+            }
+            return count == updated.length ? updated : Arrays.copyOf(updated, count);
+        });
+        return created[0];
+    }
+
+    void clear() {
+        hosts.clear();
+    }
+
+    static final class Entry {
+        final int port;
+        final Verdict verdict;
+        final long expiresAt;
+        final String deniedMessage;
+
+        private final AtomicInteger suppressed;
+        private final AtomicLong lastLogged;
+        private final boolean renewed;
+
+        private Entry(String host, int port, Verdict verdict, long expiresAt, Entry previous) {
+            this.port = port;
+            this.verdict = verdict;
+            this.expiresAt = expiresAt;
+            this.deniedMessage = verdict == Verdict.DENIED ? "Denied - " + host + ":" + port : null;
+            this.renewed = previous != null && previous.verdict == verdict;
+            this.suppressed = renewed ? previous.suppressed : new AtomicInteger();
+            this.lastLogged = renewed ? previous.lastLogged : new AtomicLong(System.nanoTime());
+        }
+
+        /**
+         * @return thrown for a repeated denial, of the same type as the first one
+         */
+        IOException denied() {
+            return VerdictCache.denied(deniedMessage, port);
+        }
+
+        /**
+         * @return true if the same verdict was cached before, its log window carries over
+         */
+        boolean isRenewed() {
+            return renewed;
+        }
+
+        /**
+         * Counts a repeated hit, allowing one log line per window
+         *
+         * @return times suppressed since the last log line, or -1 if this hit should not be logged
+         */
+        int onRepeat() {
+            long now = System.nanoTime();
+            long last = lastLogged.get();
+            if (now - last >= LOG_WINDOW_NANOS && lastLogged.compareAndSet(last, now)) {
+                return suppressed.getAndSet(0);
+            }
+            suppressed.incrementAndGet();
+            return -1;
+        }
+    }
+
+    /**
+     * A lookup (port -1) is denied with UnknownHostException, what InetAddress callers and
+     * URLStreamHandler::getHostAddress expect, a connection with IOException.
+     * A new instance for every throw: the suppressed list and cause of a Throwable are mutable
+     * and cannot be disabled below Exception, a shared instance would collect what catchers add to it.
+     */
+    static IOException denied(String message, int port) {
+        return port == -1 ? new DeniedLookupException(message) : new DeniedException(message);
+    }
+
+    // stackless, the denial is logged with its host and mod instead
+    private static final class DeniedException extends IOException {
+        private DeniedException(String message) {
+            super(message);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    private static final class DeniedLookupException extends UnknownHostException {
+        private DeniedLookupException(String message) {
+            super(message);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+}
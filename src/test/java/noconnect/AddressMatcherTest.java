@@ -0,0 +1,124 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Entries of "allowed.ip" against the addresses they must and must not match.
+ * */
+public class AddressMatcherTest {
+
+    @Test
+    public void singleAddresses() {
+        assertMatches(Arrays.asList("192.0.2.1", "2001:db8::1"),
+                new String[]{"192.0.2.1", "2001:db8::1", "2001:DB8:0:0:0:0:0:1", "::ffff:192.0.2.1", "2001:db8::1%eth0"},
+                new String[]{"192.0.2.2", "192.0.2.0", "2001:db8::2", "::192.0.2.1", "example.com", ""});
+    }
+
+    @Test
+    public void wholeFamilyPrefix() {
+        assertMatches(Collections.singletonList("0.0.0.0/0"),
+                new String[]{"0.0.0.0", "10.0.0.1", "255.255.255.255", "::ffff:203.0.113.1"},
+                new String[]{"::1", "2001:db8::1", "::"});
+        assertMatches(Collections.singletonList("::/0"),
+                new String[]{"::", "::1", "2001:db8::1", "ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff"},
+                // IPv4 mapped addresses are IPv4
+                new String[]{"10.0.0.1", "::ffff:10.0.0.1"});
+    }
+
+    @Test
+    public void fullLengthPrefix() {
+        assertMatches(Arrays.asList("192.0.2.1/32", "2001:db8::1/128"),
+                new String[]{"192.0.2.1", "2001:db8::1"},
+                new String[]{"192.0.2.0", "192.0.2.2", "2001:db8::", "2001:db8::2"});
+    }
+
+    @Test
+    public void nonCanonicalPrefix() {
+        // host bits are ignored, as 10.0.0.0/8
+        assertMatches(Arrays.asList("10.0.0.1/8", "2001:db8::1/32"),
+                new String[]{"10.0.0.0", "10.255.255.255", "2001:db8::", "2001:db8:ffff::1"},
+                new String[]{"11.0.0.0", "9.255.255.255", "2001:db9::", "2001:db7:ffff::"});
+    }
+
+    @Test
+    public void overlappingPrefixes() {
+        String[] inside = {"10.0.0.0", "10.1.2.3", "10.1.255.255", "10.200.0.1"};
+        String[] outside = {"11.0.0.0", "9.255.255.255"};
+        assertMatches(Arrays.asList("10.1.0.0/16", "10.0.0.0/8"), inside, outside);
+        assertMatches(Arrays.asList("10.0.0.0/8", "10.1.0.0/16"), inside, outside);
+        assertMatches(Arrays.asList("10.0.0.0/8", "10.0.0.0/8", "10.1.2.3"), inside, outside);
+        assertMatches(Arrays.asList("2001:db8::/48", "2001:db8::/32", "2001:db8:1::/64"),
+                new String[]{"2001:db8::1", "2001:db8:1::1", "2001:db8:ffff::1"},
+                new String[]{"2001:db9::1"});
+    }
+
+    @Test
+    public void ranges() {
+        assertMatches(Arrays.asList("192.0.2.10-192.0.2.20", "2001:db8::a-2001:db8::1:0"),
+                new String[]{"192.0.2.10", "192.0.2.16", "192.0.2.20", "2001:db8::a", "2001:db8::ffff", "2001:db8::1:0"},
+                new String[]{"192.0.2.9", "192.0.2.21", "2001:db8::9", "2001:db8::1:1"});
+        assertMatches(Collections.singletonList("0.0.0.0-255.255.255.255"),
+                new String[]{"0.0.0.0", "128.0.0.0", "255.255.255.255"}, new String[]{"::1"});
+    }
+
+    @Test
+    public void ignoresMalformedEntries() {
+        List<String> malformed = Arrays.asList("", "256.0.0.0/8", "1.2.3/24", "1.2.3", "1.2.3.4.", "10.0.0.0/33",
+                "::/129", "10.0.0.0/-1", "10.0.0.0/", "/8", "10.0.0.0/x", "192.0.2.20-192.0.2.10",
+                "192.0.2.1-2001:db8::1", "192.0.2.1-", "[::1]", "example.com");
+        assertMatches(malformed, new String[0],
+                new String[]{"0.0.0.0", "1.2.3.4", "10.0.0.1", "192.0.2.15", "256.0.0.1", "::", "::1", "2001:db8::1"});
+        // valid entries next to them still apply
+        assertMatches(Arrays.asList("256.0.0.0/8", "192.0.2.0/24", "10.0.0.0/33"),
+                new String[]{"192.0.2.1"}, new String[]{"10.0.0.1"});
+    }
+
+    @Test
+    public void matchesAsMask() {
+        Random random = new Random(0x5EED);
+        HostAddress address = new HostAddress();
+        for (int round = 0; round < 200; round++) {
+            int network = random.nextInt();
+            int prefix = random.nextInt(33);
+            AddressMatcher matcher = AddressMatcher.compile(Collections.singletonList(toString(network) + "/" + prefix));
+            int mask = prefix == 0 ? 0 : -1 << (32 - prefix);
+            for (int i = 0; i < 50; i++) {
+                // around the block and anywhere
+                int candidate = i % 2 == 0 ? (network & mask) ^ (1 << random.nextInt(32)) : random.nextInt();
+                assertTrue(address.parse(toString(candidate)));
+                assertEquals(toString(candidate) + " in " + toString(network) + "/" + prefix,
+                        (candidate & mask) == (network & mask), matcher.matches(address));
+            }
+        }
+    }
+
+    private static void assertMatches(List<String> entries, String[] matching, String[] other) {
+        AddressMatcher matcher = AddressMatcher.compile(entries);
+        HostAddress address = new HostAddress();
+        for (String host : matching) {
+            address.parse(host);
+            assertTrue(host + " in " + entries, matcher.matches(address));
+        }
+        for (String host : other) {
+            address.parse(host);
+            assertTrue(host + " not in " + entries, !matcher.matches(address));
+        }
+    }
+
+    private static String toString(int address) {
+        return (address >>> 24) + "." + ((address >>> 16) & 0xFF) + "." + ((address >>> 8) & 0xFF) + "." + (address & 0xFF);
+    }
+
+}
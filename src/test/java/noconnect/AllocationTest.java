@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/*
+ * The first tier of URLSecMgr (checkLocal, checkCached) runs on every connection and must not allocate:
+ * loopback, an IP of an allowed host already resolved, and a lookup of an address of this host.
+ * */
+public class AllocationTest {
+    private static final int WARMUP = 50_000;
+    private static final int CHECKS = 100_000;
+    private static final int ATTEMPTS = 5;
+
+    @Test
+    public void firstTierDoesNotAllocate() throws SocketException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        // a logging path enabled would be measured instead of the check
+        Configurator.setLevel("NoConnect", Level.OFF);
+        Configurator.setLevel("noconnect", Level.OFF);
+
+        TestSupport.loadConfig(
+                "enable = true",
+                "log_type = \"NONE\"",
+                "hot_reload = false",
+                "[allowed]",
+                "    hosts = [\"api.example.com\"]",
+                "[cache]",
+                "    ttl = 86400",
+                "    preresolve = false");
+        URLSecMgr secMgr = new URLSecMgr();
+        // as if resolved by HostResolver
+        secMgr.getResolutionCache().put("198.51.100.7", "api.example.com");
+        String hostAddress = findHostAddress();
+
+        for (int i = 0; i < WARMUP; i++) {
+            runChecks(secMgr, hostAddress);
+        }
+        long thread = Thread.currentThread().getId();
+        // the bean itself may allocate on some JDK, measured with nothing in between
+        long overhead = -threads.getThreadAllocatedBytes(thread) + threads.getThreadAllocatedBytes(thread);
+        // a late compilation or deoptimization of the loop may allocate once, a check allocates every time
+        long allocated = Long.MAX_VALUE;
+        for (int attempt = 0; attempt < ATTEMPTS && allocated != 0; attempt++) {
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < CHECKS; i++) {
+                runChecks(secMgr, hostAddress);
+            }
+            allocated = Math.min(allocated, threads.getThreadAllocatedBytes(thread) - before - overhead);
+        }
+        assertEquals("bytes allocated by " + CHECKS + " rounds of checks", 0, allocated);
+    }
+
+    private static void runChecks(URLSecMgr secMgr, String hostAddress) {
+        secMgr.checkConnect("127.0.0.1", 25565);
+        secMgr.checkConnect("::1", 25565);
+        secMgr.checkConnect("198.51.100.7", 443);
+        if (hostAddress != null) {
+            secMgr.checkConnect(hostAddress, -1);
+        }
+    }
+
+    /**
+     * @return an IPv4 address of a network interface other than loopback, null if there is none
+     */
+    private static String findHostAddress() throws SocketException {
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        List<NetworkInterface> list = interfaces == null ? new ArrayList<>() : Collections.list(interfaces);
+        for (NetworkInterface networkInterface : list) {
+            for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+                if (address instanceof Inet4Address && !address.isLoopbackAddress()) {
+                    return address.getHostAddress();
+                }
+            }
+        }
+        return null;
+    }
+
+}
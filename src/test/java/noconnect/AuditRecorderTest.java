@@ -0,0 +1,117 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * An IP connected after a lookup is recorded under the looked up host only if the lookup resolved to it.
+ * */
+public class AuditRecorderTest {
+
+    @Test
+    public void linksAddressOfLookup() throws UnknownHostException {
+        AuditRecorder recorder = new AuditRecorder(lookups("api.test", "198.51.100.1", "2001:db8::1"));
+        lookup(recorder, "api.test");
+        assertTrue(recorder.recordKnown("198.51.100.1", 443, true));
+        assertTrue(recorder.recordKnown("2001:db8:0:0:0:0:0:1", 443, true));
+        assertEquals(1, recorder.getEndpointCount());
+    }
+
+    @Test
+    public void recordsOtherAddressOnItsOwn() throws UnknownHostException {
+        AuditRecorder recorder = new AuditRecorder(lookups("api.test", "198.51.100.1"));
+        lookup(recorder, "api.test");
+        // a hardcoded IP connected right after an unrelated lookup
+        assertFalse(recorder.recordKnown("203.0.113.9", 25565, true));
+        recorder.recordNew("203.0.113.9", 25565, true, null);
+        assertEquals(2, recorder.getEndpointCount());
+        assertTrue(recorder.recordKnown("203.0.113.9", 25565, true));
+        // the lookup still links its own address
+        assertTrue(recorder.recordKnown("198.51.100.1", 443, true));
+        assertEquals(2, recorder.getEndpointCount());
+    }
+
+    @Test
+    public void unresolvedLookupLinksNothing() throws UnknownHostException {
+        AuditRecorder recorder = new AuditRecorder(lookups("api.test", "198.51.100.1"));
+        lookup(recorder, "gone.test");
+        assertFalse(recorder.recordKnown("198.51.100.1", 443, true));
+    }
+
+    @Test
+    public void suggestsLinkedAndOwnAddresses() throws IOException {
+        TestSupport.loadConfig(
+                "enable = true",
+                "log_type = \"NONE\"",
+                "hot_reload = false",
+                "audit_mode = true");
+        AuditRecorder recorder = new AuditRecorder(lookups("api.test", "198.51.100.1"));
+        lookup(recorder, "api.test");
+        recorder.recordKnown("198.51.100.1", 443, true);
+        recorder.recordNew("203.0.113.9", 25565, true, null);
+        Path file = Files.createTempDirectory("noconnect-test").resolve("noconnect-suggested.toml");
+        recorder.start(file);
+        assertEquals(file.toString(), recorder.writeSuggestion());
+
+        String suggestion = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        String hosts = suggestion.substring(suggestion.indexOf("hosts = ["), suggestion.indexOf("ip = ["));
+        String ips = suggestion.substring(suggestion.indexOf("ip = ["));
+        assertTrue(suggestion, hosts.contains("# resolved 198.51.100.1"));
+        assertTrue(suggestion, hosts.contains("\"api.test\""));
+        assertTrue(suggestion, ips.contains("\"203.0.113.9\""));
+        assertFalse(suggestion, ips.contains("198.51.100.1"));
+    }
+
+    @Test
+    public void linksThroughLookupOfAuditedHost() {
+        TestSupport.loadConfig(
+                "enable = true",
+                "log_type = \"NONE\"",
+                "hot_reload = false",
+                "audit_mode = true",
+                "[allowed]",
+                "    hosts = []",
+                "    thread = []");
+        URLSecMgr secMgr = new HostResolverTest.StubLookup().add("api.test", 198, 51, 100, 1).create();
+        secMgr.checkConnect("api.test", -1);
+        secMgr.checkConnect("198.51.100.1", 443);
+        assertEquals(1, secMgr.getAuditRecorder().getEndpointCount());
+        secMgr.checkConnect("203.0.113.9", 443);
+        assertEquals(2, secMgr.getAuditRecorder().getEndpointCount());
+    }
+
+    private static void lookup(AuditRecorder recorder, String host) {
+        if (!recorder.recordKnown(host, -1, false)) {
+            recorder.recordNew(host, -1, false, null);
+        }
+    }
+
+    // the host resolves to the addresses, other hosts do not resolve
+    private static Function<String, InetAddress[]> lookups(String host, String... addresses) throws UnknownHostException {
+        InetAddress[] resolved = new InetAddress[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            resolved[i] = InetAddress.getByName(addresses[i]);
+        }
+        Map<String, InetAddress[]> answers = new HashMap<>();
+        answers.put(host, resolved);
+        return answers::get;
+    }
+
+}
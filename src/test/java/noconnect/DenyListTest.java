@@ -0,0 +1,123 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Lists in the formats found in the wild, and the hosts they must and must not deny.
+ * */
+public class DenyListTest {
+    private Path listsDir;
+
+    @Before
+    public void setUp() throws IOException {
+        listsDir = Files.createTempDirectory("noconnect-test").resolve("lists");
+        Files.createDirectories(listsDir);
+    }
+
+    @Test
+    public void parsesListFormats() throws IOException {
+        write("hosts.txt",
+                "# hosts file",
+                "127.0.0.1 localhost",
+                "::1 ip6-localhost ip6-loopback",
+                "0.0.0.0 0.0.0.0",
+                "0.0.0.0 ads.hosts.test # trailing comment",
+                "127.0.0.1\ttracker.hosts.test  metrics.hosts.test",
+                "",
+                "   ");
+        write("adblock.txt",
+                "[Adblock Plus 2.0]",
+                "! Title: adblock comments start with '!', the line is not a domain",
+                "||ads.adblock.test^",
+                "||tracker.adblock.test^$third-party",
+                "||paths.adblock.test/banner^",
+                "||noanchor.adblock.test");
+        write("plain.txt",
+                "example.com",
+                "Upper.Example.ORG",
+                "absolute.test.",
+                "*.wildcard.test");
+        DenyList list = DenyList.open(listsDir);
+
+        String[] denied = {
+                "ads.hosts.test", "tracker.hosts.test", "metrics.hosts.test",
+                "ads.adblock.test", "tracker.adblock.test", "noanchor.adblock.test",
+                "example.com", "EXAMPLE.com", "example.com.", "upper.example.org", "absolute.test", "wildcard.test",
+                // parent domains
+                "a.example.com", "a.b.example.com", "cdn.ads.hosts.test", "a.wildcard.test"
+        };
+        String[] allowed = {
+                // local names of a hosts file are never denied
+                "localhost", "ip6-localhost", "ip6-loopback", "0.0.0.0", "127.0.0.1",
+                // words of the adblock header and comment, a rule with a path
+                "[adblock", "plus", "title:", "comments", "domain", "paths.adblock.test",
+                // not a label of a listed domain
+                "notexample.com", "example.community", "xexample.com", "example.com.evil.test", "ample.com",
+                "hosts.test", "com", "test", "", ".",
+                "b.upper.example.org.other"
+        };
+        for (String host : denied) {
+            assertTrue(host, list.matches(host));
+        }
+        for (String host : allowed) {
+            assertFalse(host, list.matches(host));
+        }
+    }
+
+    @Test
+    public void countsDistinctDomains() throws IOException {
+        write("a.txt", "one.test", "two.test", "one.test");
+        write("b.txt", "0.0.0.0 two.test", "||three.test^");
+        assertEquals(3, DenyList.open(listsDir).size());
+    }
+
+    @Test
+    public void compilesAgainWhenListChanges() throws IOException {
+        Path list = write("list.txt", "old.test");
+        assertTrue(DenyList.open(listsDir).matches("old.test"));
+        Path index = listsDir.resolveSibling("lists.bin");
+        assertTrue(Files.isRegularFile(index));
+        FileTime compiled = Files.getLastModifiedTime(index);
+
+        // unchanged lists are read from the index as compiled
+        assertTrue(DenyList.open(listsDir).matches("old.test"));
+        assertEquals(compiled, Files.getLastModifiedTime(index));
+
+        write("list.txt", "new.test", "other.test");
+        Files.setLastModifiedTime(list, FileTime.fromMillis(Files.getLastModifiedTime(list).toMillis() + 2000));
+        DenyList changed = DenyList.open(listsDir);
+        assertFalse(changed.matches("old.test"));
+        assertTrue(changed.matches("new.test"));
+
+        Files.delete(list);
+        assertEquals(0, DenyList.open(listsDir).size());
+    }
+
+    @Test
+    public void emptyFolder() {
+        DenyList list = DenyList.open(listsDir);
+        assertEquals(0, list.size());
+        assertFalse(list.matches("example.com"));
+    }
+
+    private Path write(String name, String... lines) throws IOException {
+        return Files.write(listsDir.resolve(name), Arrays.asList(lines), StandardCharsets.UTF_8);
+    }
+
+}
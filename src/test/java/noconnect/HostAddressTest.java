@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.junit.Test;
+
+import java.net.UnknownHostException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * IP literals as accepted by Guava InetAddresses#isInetAddress, and the address they parse to.
+ * */
+public class HostAddressTest {
+    // literal, the address as InetAddress#getHostAddress prints it, null if not a literal
+    private static final String[][] LITERALS = {
+            {"192.0.2.1", "192.0.2.1"},
+            {"0.0.0.0", "0.0.0.0"},
+            {"255.255.255.255", "255.255.255.255"},
+            {"127.0.0.1", "127.0.0.1"},
+            {"::1", "0:0:0:0:0:0:0:1"},
+            {"::", "0:0:0:0:0:0:0:0"},
+            {"2001:db8::1", "2001:db8:0:0:0:0:0:1"},
+            {"2001:DB8:0:0:0:0:0:1", "2001:db8:0:0:0:0:0:1"},
+            {"2001:db8::", "2001:db8:0:0:0:0:0:0"},
+            {"1:2:3:4:5:6:7:8", "1:2:3:4:5:6:7:8"},
+            {"1::8", "1:0:0:0:0:0:0:8"},
+            {"1:2:3:4:5:6::", "1:2:3:4:5:6:0:0"},
+            {"::2:3:4:5:6:7:8", "0:2:3:4:5:6:7:8"},
+            {"1:2:3:4:5:6:192.0.2.1", "1:2:3:4:5:6:c000:201"},
+            {"::192.0.2.1", "0:0:0:0:0:0:c000:201"},
+            // zone ID, the scope is not part of the address
+            {"fe80::1%eth0", "fe80:0:0:0:0:0:0:1"},
+            {"fe80::1%1", "fe80:0:0:0:0:0:0:1"},
+            // IPv4 mapped, an IPv4 address as InetAddress makes it
+            {"::ffff:192.0.2.1", "192.0.2.1"},
+            {"::FFFF:c000:201", "192.0.2.1"},
+            {"0:0:0:0:0:ffff:7f00:1", "127.0.0.1"},
+            // malformed
+            {"", null},
+            {"256.0.0.1", null},
+            {"1.2.3.999", null},
+            {"1.2.3", null},
+            {"1.2.3.4.5", null},
+            {"1.2.3.4.", null},
+            {".1.2.3.4", null},
+            {"1..2.3", null},
+            {"01.2.3.4", null},
+            {"1.2.3.-1", null},
+            {" 1.2.3.4", null},
+            {"0x7f.0.0.1", null},
+            {"[::1]", null},
+            {"[2001:db8::1]", null},
+            {"fe80::1%", null},
+            {":::", null},
+            {"::1:", null},
+            {":1::", null},
+            {"1::2::3", null},
+            {"1:2:3:4:5:6:7:8:9", null},
+            {"1:2:3:4:5:6:7::8", null},
+            {"12345::", null},
+            {"g::1", null},
+            {"::256.0.0.1", null},
+            {"1:2:3:4:5:6:7:192.0.2.1", null},
+            {"example.com", null},
+            {"localhost", null},
+    };
+
+    @Test
+    public void parsesLiterals() throws UnknownHostException {
+        HostAddress address = new HostAddress();
+        for (String[] literal : LITERALS) {
+            boolean parsed = address.parse(literal[0]);
+            assertEquals("\"" + literal[0] + "\" is a literal", literal[1] != null, parsed);
+            assertEquals("\"" + literal[0] + "\" is an IP", parsed, address.isIP());
+            if (parsed) {
+                assertEquals("\"" + literal[0] + "\"", literal[1], address.toInetAddress().getHostAddress());
+                assertEquals("family of \"" + literal[0] + "\"", literal[1].contains(":") ? HostAddress.IPV6 : HostAddress.IPV4,
+                        address.family);
+            }
+        }
+    }
+
+    @Test
+    public void reusedInstanceForgetsPreviousAddress() {
+        HostAddress address = new HostAddress();
+        assertTrue(address.parse("192.0.2.1"));
+        assertFalse(address.parse("1.2.3"));
+        assertEquals(HostAddress.NONE, address.family);
+        assertTrue(address.parse("2001:db8::1"));
+        assertTrue(address.parse("::ffff:192.0.2.1"));
+        assertEquals(HostAddress.IPV4, address.family);
+    }
+
+    @Test
+    public void loopback() {
+        String[] loopback = {"127.0.0.1", "127.255.255.254", "::1", "::ffff:127.0.0.1"};
+        String[] other = {"128.0.0.1", "126.255.255.255", "::", "::2", "0.0.0.0", "fe80::1", "localhost"};
+        for (String host : loopback) {
+            assertTrue(host, HostAddress.parseLocal(host).isLoopback());
+        }
+        for (String host : other) {
+            assertFalse(host, HostAddress.parseLocal(host).isLoopback());
+        }
+    }
+
+}
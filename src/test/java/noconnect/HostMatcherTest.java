@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+/*
+ * HostMatcher must answer as NetworkUtil#matchesHostname over every pattern, the linear scan it replaced.
+ * Labels come from a small alphabet so that patterns share suffixes and hosts land on and around them.
+ * */
+public class HostMatcherTest {
+    private static final String[] LABELS = {"a", "b", "ab", "com", "net", "example", "EXAMPLE", "xn--bcher-kva", "1"};
+
+    @Test
+    public void matchesAsLinearScan() {
+        Random random = new Random(0x5EED);
+        for (int round = 0; round < 200; round++) {
+            List<String> patterns = generatePatterns(random, 1 + random.nextInt(20));
+            HostMatcher matcher = HostMatcher.compile(patterns);
+            for (String host : generateHosts(random, patterns)) {
+                assertMatches(patterns, matcher, host);
+            }
+        }
+    }
+
+    @Test
+    public void matchesEdgeCases() {
+        List<String> patterns = Arrays.asList("example.com", "*.example.com", "*.wild.net", "exact.org", "*.", "");
+        HostMatcher matcher = HostMatcher.compile(patterns);
+        String[] hosts = {
+                "example.com", "a.example.com", "a.b.example.com", "Example.com", "A.EXAMPLE.COM",
+                // apex of a wildcard without its exact pattern
+                "wild.net", "a.wild.net", "awild.net", ".wild.net",
+                // trailing dot of a fully qualified name
+                "example.com.", "a.example.com.", "exact.org.", "a.",
+                // empty labels
+                "", ".", "..", "a..example.com", "..example.com", "exact..org", ".exact.org", "exact.org..",
+                "sub.exact.org", "org", "com", "net"
+        };
+        for (String host : hosts) {
+            assertMatches(patterns, matcher, host);
+        }
+    }
+
+    private static void assertMatches(List<String> patterns, HostMatcher matcher, String host) {
+        boolean expected = false;
+        for (String pattern : patterns) {
+            expected |= NetworkUtil.matchesHostname(host, pattern);
+        }
+        assertEquals("\"" + host + "\" against " + patterns, expected, matcher.matches(host));
+    }
+
+    private static List<String> generatePatterns(Random random, int count) {
+        List<String> patterns = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String name = generateName(random, 1 + random.nextInt(3));
+            patterns.add(random.nextInt(3) == 0 ? "*." + name : name);
+        }
+        return patterns;
+    }
+
+    private static Set<String> generateHosts(Random random, List<String> patterns) {
+        Set<String> hosts = new LinkedHashSet<>();
+        for (String pattern : patterns) {
+            String name = pattern.startsWith("*.") ? pattern.substring(2) : pattern;
+            hosts.add(name);
+            hosts.add(generateName(random, 1) + "." + name);
+            hosts.add(generateName(random, 2) + "." + name);
+            hosts.add(name + ".");
+            hosts.add("." + name);
+            hosts.add(name.substring(name.indexOf('.') + 1));
+            hosts.add(name.toUpperCase(Locale.ROOT));
+            hosts.add(name.replaceFirst("\\.", ".."));
+            hosts.add(name.substring(1));
+        }
+        for (int i = 0; i < 20; i++) {
+            hosts.add(generateName(random, 1 + random.nextInt(4)));
+        }
+        return hosts;
+    }
+
+    private static String generateName(Random random, int labels) {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < labels; i++) {
+            if (i > 0) {
+                name.append('.');
+            }
+            name.append(LABELS[random.nextInt(LABELS.length)]);
+        }
+        return name.toString();
+    }
+
+}
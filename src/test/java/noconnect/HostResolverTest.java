@@ -0,0 +1,160 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+/*
+ * Hosts resolved by HostResolver on its own threads, through a stub of InetAddress#getAllByName
+ * that checks the lookup as the JDK does once the security manager is installed.
+ * */
+public class HostResolverTest {
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    @Test
+    public void resolvesModHostsOnResolverThreads() throws InterruptedException {
+        TestSupport.loadConfig(
+                "enable = true",
+                "log_type = \"NONE\"",
+                "hot_reload = false",
+                "[allowed]",
+                "    hosts = [\"global.test\"]",
+                "    thread = []",
+                "[cache]",
+                "    ttl = 86400",
+                "[mods.examplemod]",
+                "    hosts = [\"mod.test\"]");
+        StubLookup lookup = new StubLookup()
+                .add("global.test", 198, 51, 100, 1)
+                .add("mod.test", 198, 51, 100, 2);
+        URLSecMgr secMgr = lookup.create();
+        secMgr.startResolver();
+
+        ResolutionCache cache = secMgr.getResolutionCache();
+        // no mod is attributed on a resolver thread, the lookup of a mod host must pass all the same
+        assertEquals(1, awaitResolved(cache, "mod.test").length);
+        assertArrayEquals(new String[]{"mod.test"}, cache.get("198.51.100.2"));
+        assertEquals(1, awaitResolved(cache, "global.test").length);
+        assertArrayEquals(new String[]{"global.test"}, cache.get("198.51.100.1"));
+    }
+
+    @Test
+    public void restoredHostsAreResolvedAgain() throws IOException, InterruptedException {
+        URLSecMgr secMgr = restoreMovedHost();
+        ResolutionCache cache = secMgr.getResolutionCache();
+        secMgr.startResolver();
+
+        InetAddress[] fresh = awaitResolved(cache, "cdn.test");
+        assertEquals(1, fresh.length);
+        assertEquals("198.51.100.20", fresh[0].getHostAddress());
+        assertArrayEquals(new String[]{"cdn.test"}, cache.get("198.51.100.20"));
+        secMgr.checkConnect("198.51.100.20", 443);
+    }
+
+    @Test
+    public void restoredHostIsResolvedOnConnect() throws IOException {
+        URLSecMgr secMgr = restoreMovedHost();
+        ResolutionCache cache = secMgr.getResolutionCache();
+
+        secMgr.checkConnect("cdn.test", 443);
+        assertArrayEquals(new String[]{"cdn.test"}, cache.get("198.51.100.20"));
+        secMgr.checkConnect("198.51.100.20", 443);
+    }
+
+    /**
+     * @return a URLSecMgr restored from a file where cdn.test is 198.51.100.10, it now resolves to 198.51.100.20
+     */
+    private static URLSecMgr restoreMovedHost() throws IOException {
+        TestSupport.loadConfig(
+                "enable = true",
+                "log_type = \"NONE\"",
+                "hot_reload = false",
+                "[allowed]",
+                "    hosts = [\"cdn.test\"]",
+                "    thread = []",
+                "[cache]",
+                "    ttl = 86400",
+                "    persistent = true");
+        Path file = Files.createTempDirectory("noconnect-test").resolve("resolution.bin");
+        ResolutionFile earlier = new ResolutionFile(file, Policy.get().hostsFingerprint);
+        earlier.load(Policy.get(), new ResolutionCache(16, 86400));
+        earlier.append("cdn.test", new InetAddress[]{InetAddress.getByAddress("cdn.test", new byte[]{(byte) 198, 51, 100, 10})},
+                TimeUnit.DAYS.toNanos(1));
+        earlier.close();
+
+        URLSecMgr secMgr = new StubLookup().add("cdn.test", 198, 51, 100, 20).create();
+        secMgr.startResolutionFile(file);
+        ResolutionCache cache = secMgr.getResolutionCache();
+        // usable right away, but not taken as the current answer of the host
+        assertArrayEquals(new String[]{"cdn.test"}, cache.get("198.51.100.10"));
+        assertFalse(cache.isResolved("cdn.test"));
+        return secMgr;
+    }
+
+    static InetAddress[] awaitResolved(ResolutionCache cache, String host) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        InetAddress[] addresses;
+        while ((addresses = cache.getAddresses(host)) == null && System.nanoTime() - deadline < 0) {
+            Thread.sleep(10);
+        }
+        assertNotNull(host + " was not resolved", addresses);
+        return addresses;
+    }
+
+    /*
+     * Fixed answers, a host without one does not resolve
+     * */
+    static final class StubLookup implements Function<String, InetAddress[]> {
+        private final Map<String, InetAddress[]> answers = new HashMap<>();
+        private URLSecMgr secMgr;
+
+        StubLookup add(String host, int... address) {
+            byte[] bytes = new byte[address.length];
+            for (int i = 0; i < address.length; i++) {
+                bytes[i] = (byte) address[i];
+            }
+            try {
+                answers.put(host, new InetAddress[]{InetAddress.getByAddress(host, bytes)});
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException(e);
+            }
+            return this;
+        }
+
+        URLSecMgr create() {
+            secMgr = new URLSecMgr(this);
+            return secMgr;
+        }
+
+        @Override
+        public InetAddress[] apply(String host) {
+            try {
+                secMgr.checkConnect(host, -1);
+            } catch (Exception e) { // thrown without being declared
+                if (e instanceof UnknownHostException) {
+                    return null;
+                }
+                throw e;
+            }
+            return answers.get(host);
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/*
+ * The mod of a check is its nearest mod class, wherever it is on the stack.
+ * The mod class is loaded from a modjar:// location, as FML loads the classes of a mod.
+ * */
+public class ModAttributionTest {
+    private final ModAttribution attribution = new ModAttribution();
+
+    @Test
+    public void findsModNearTop() throws MalformedURLException {
+        Class<?> mod = defineModClass("examplemod", "examplemod.Client");
+        assertEquals("examplemod", attribution.getMod(stack(2, mod)));
+    }
+
+    @Test
+    public void findsModBelowMemoDepth() throws MalformedURLException {
+        Class<?> mod = defineModClass("deepmod", "deepmod.Client");
+        // Netty, HTTP clients and event dispatch put many frames above the mod
+        assertEquals("deepmod", attribution.getMod(stack(CallerAttribution.MAX_DEPTH + 16, mod)));
+    }
+
+    @Test
+    public void nearestModWins() throws MalformedURLException {
+        Class<?> near = defineModClass("nearmod", "nearmod.Client");
+        Class<?> far = defineModClass("farmod", "farmod.Client");
+        Class<?>[] classContext = stack(CallerAttribution.MAX_DEPTH + 4, near);
+        classContext = Arrays.copyOf(classContext, classContext.length + 1);
+        classContext[classContext.length - 1] = far;
+        assertEquals("nearmod", attribution.getMod(classContext));
+    }
+
+    @Test
+    public void noModOnStack() {
+        assertNull(attribution.getMod(new Class<?>[]{String.class, ModAttributionTest.class, Thread.class}));
+        assertNull(attribution.getMod(new Class<?>[0]));
+    }
+
+    /**
+     * @return JDK and NoConnect frames, then the mod class
+     */
+    private static Class<?>[] stack(int frames, Class<?> mod) {
+        Class<?>[] classContext = new Class<?>[frames + 1];
+        for (int i = 0; i < frames; i++) {
+            classContext[i] = i % 2 == 0 ? String.class : ModAttribution.class;
+        }
+        classContext[frames] = mod;
+        return classContext;
+    }
+
+    private static Class<?> defineModClass(String modId, String className) throws MalformedURLException {
+        ClassWriter writer = new ClassWriter(0);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, className.replace('.', '/'), null, "java/lang/Object", null);
+        writer.visitEnd();
+        byte[] bytes = writer.toByteArray();
+        URL location = new URL("modjar", modId, -1, "/" + className.replace('.', '/') + ".class", new ModJarHandler());
+        ProtectionDomain domain = new ProtectionDomain(new CodeSource(location, (Certificate[]) null), null);
+        return new ClassLoader(ModAttributionTest.class.getClassLoader()) {
+            Class<?> define() {
+                return defineClass(className, bytes, 0, bytes.length, domain);
+            }
+        }.define();
+    }
+
+    private static final class ModJarHandler extends URLStreamHandler {
+        @Override
+        protected URLConnection openConnection(URL url) {
+            throw new UnsupportedOperationException(url.toString());
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Allowed entries with and without port, as parsed into rules and as the policy applies them.
+ * */
+public class PortRulesTest {
+    // entry, pattern, port, null pattern if the entry is ignored
+    private static final Object[][] ENTRIES = {
+            {"example.com", "example.com", PortRules.ANY_PORT},
+            {"example.com:443", "example.com", 443},
+            {" example.com:25565 ", "example.com", 25565},
+            {"*.example.com:443", "*.example.com", 443},
+            {"*:443", "*", 443},
+            {"*", "*", PortRules.ANY_PORT},
+            {"https://example.com", "example.com", 443},
+            {"http://example.com/", "example.com", 80},
+            {"wss://example.com:8443", "example.com", 8443},
+            {"ftp://example.com", "example.com", PortRules.ANY_PORT},
+            {"192.0.2.1:1", "192.0.2.1", 1},
+            {"10.0.0.0/8:65535", "10.0.0.0/8", 65535},
+            {"192.0.2.10-192.0.2.20:443", "192.0.2.10-192.0.2.20", 443},
+            {"2001:db8::1", "2001:db8::1", PortRules.ANY_PORT},
+            {"[2001:db8::1]:443", "2001:db8::1", 443},
+            {"[2001:db8::]/32:443", "2001:db8::/32", 443},
+            {"[2001:db8::]/32", "2001:db8::/32", PortRules.ANY_PORT},
+            // out of range or not a port
+            {"example.com:0", null, 0},
+            {"example.com:65536", null, 0},
+            {"example.com:-1", null, 0},
+            {"example.com:", null, 0},
+            {"example.com:*", null, 0},
+            {"example.com:https", null, 0},
+            {"[2001:db8::1]:70000", null, 0},
+            {"[2001:db8::1", null, 0},
+            {":443", null, 0},
+            {"", null, 0},
+    };
+
+    @Test
+    public void parsesEntries() {
+        for (Object[] entry : ENTRIES) {
+            List<PortRules.Rule> rules = PortRules.parse(Collections.singletonList((String) entry[0]));
+            if (entry[1] == null) {
+                assertTrue("\"" + entry[0] + "\" is ignored", rules.isEmpty());
+            } else {
+                assertEquals("\"" + entry[0] + "\"", 1, rules.size());
+                assertEquals("pattern of \"" + entry[0] + "\"", entry[1], rules.get(0).pattern);
+                assertEquals("port of \"" + entry[0] + "\"", entry[2], rules.get(0).port);
+            }
+        }
+    }
+
+    @Test
+    public void hostsOnTheirPorts() {
+        loadAllowed("[\"any.test\", \"web.test:443\", \"web.test:80\", \"*.game.test:25565\", \"*:8443\"," +
+                " \"bad.test:0\", \"bad.test:65536\"]", "[]");
+        Policy policy = Policy.get();
+        assertHost(policy, "any.test", 1, true);
+        assertHost(policy, "any.test", 65535, true);
+        assertHost(policy, "web.test", 443, true);
+        assertHost(policy, "web.test", 80, true);
+        assertHost(policy, "web.test", 25565, false);
+        assertHost(policy, "a.game.test", 25565, true);
+        assertHost(policy, "a.game.test", 443, false);
+        assertHost(policy, "game.test", 25565, false);
+        // "*" is not a wildcard, it never widens to every host
+        assertHost(policy, "anything.example", 8443, false);
+        // ignored, an out of range port does not widen to any port
+        assertHost(policy, "bad.test", 443, false);
+        // a lookup is allowed for a host allowed on any port
+        assertHost(policy, "web.test", PortRules.ANY_PORT, true);
+        assertHost(policy, "anything.example", PortRules.ANY_PORT, false);
+    }
+
+    @Test
+    public void addressRangesOnTheirPorts() {
+        loadAllowed("[]", "[\"10.0.0.0/8:25565\", \"192.0.2.10-192.0.2.20:443\", \"[2001:db8::]/32:443\"," +
+                " \"198.51.100.1\", \"203.0.113.1:99999\"]");
+        Policy policy = Policy.get();
+        assertIP(policy, "10.1.2.3", 25565, true);
+        assertIP(policy, "10.1.2.3", 443, false);
+        assertIP(policy, "11.0.0.1", 25565, false);
+        assertIP(policy, "192.0.2.15", 443, true);
+        assertIP(policy, "192.0.2.21", 443, false);
+        assertIP(policy, "192.0.2.15", 80, false);
+        assertIP(policy, "2001:db8:1::1", 443, true);
+        assertIP(policy, "2001:db8:1::1", 80, false);
+        assertIP(policy, "2001:db9::1", 443, false);
+        assertIP(policy, "198.51.100.1", 1, true);
+        assertIP(policy, "203.0.113.1", 443, false);
+        assertIP(policy, "10.1.2.3", PortRules.ANY_PORT, true);
+    }
+
+    private static void assertHost(Policy policy, String host, int port, boolean allowed) {
+        assertEquals(host + ":" + port, allowed, policy.isAllowedHost(host, port));
+    }
+
+    private static void assertIP(Policy policy, String ip, int port, boolean allowed) {
+        HostAddress address = new HostAddress();
+        assertTrue(address.parse(ip));
+        assertEquals(ip + ":" + port, allowed, policy.isAllowedIP(address, port));
+    }
+
+    private static void loadAllowed(String hosts, String ips) {
+        TestSupport.loadConfig(
+                "enable = true",
+                "log_type = \"NONE\"",
+                "hot_reload = false",
+                "[allowed]",
+                "    hosts = " + hosts,
+                "    ip = " + ips,
+                "    thread = []");
+    }
+
+}
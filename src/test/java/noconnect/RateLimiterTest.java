@@ -0,0 +1,154 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * A bucket gives its burst at once, then a token per interval, on a clock the test advances.
+ * */
+public class RateLimiterTest {
+    // 10 per minute, a token every 6 seconds
+    private static final long INTERVAL = TimeUnit.SECONDS.toNanos(6);
+
+    private long now = 1L << 40;
+    private RateLimiter limiter;
+    private Policy policy;
+
+    @Before
+    public void setUp() {
+        TestSupport.loadConfig(
+                "enable = true",
+                "log_type = \"NONE\"",
+                "hot_reload = false",
+                "[rate_limit]",
+                "    hosts = [\"*.limited.test 3 10\", \"bad.test x 10\", \"bad.test 0 10\"]",
+                "    mods = [\"chatty 2 10\"]");
+        policy = Policy.get();
+        limiter = new RateLimiter(16, () -> now);
+    }
+
+    @Test
+    public void burstThenRefill() {
+        assertEquals(3, drain("a.limited.test"));
+        now += INTERVAL - 1;
+        assertLimited("a.limited.test");
+        now += 1;
+        assertEquals(1, drain("a.limited.test"));
+        now += 2 * INTERVAL;
+        assertEquals(2, drain("a.limited.test"));
+    }
+
+    @Test
+    public void idleBucketRefillsUpToBurst() {
+        drain("a.limited.test");
+        now += TimeUnit.HOURS.toNanos(1);
+        assertEquals(3, drain("a.limited.test"));
+    }
+
+    @Test
+    public void bucketPerHost() {
+        assertEquals(3, drain("a.limited.test"));
+        assertEquals(3, drain("b.limited.test"));
+        // no rule, or an invalid one
+        assertEquals(100, drain("other.test"));
+        assertEquals(100, drain("bad.test"));
+    }
+
+    @Test
+    public void modBudgetAcrossHosts() {
+        assertNull(limiter.acquire(policy, "one.test", "chatty"));
+        assertNull(limiter.acquire(policy, "two.test", "chatty"));
+        RateLimiter.Bucket bucket = limiter.acquire(policy, "three.test", "chatty");
+        assertEquals("chatty", bucket.key);
+        assertNull(limiter.acquire(policy, "three.test", "quiet"));
+        assertNull(limiter.acquire(policy, "three.test", null));
+    }
+
+    @Test
+    public void logsOncePerEmptyBucket() {
+        drain("a.limited.test");
+        RateLimiter.Bucket bucket = limiter.acquire(policy, "a.limited.test", null);
+        assertTrue(bucket.onLimited());
+        assertFalse(bucket.onLimited());
+        now += INTERVAL;
+        assertEquals(1, drain("a.limited.test"));
+        assertTrue(limiter.acquire(policy, "a.limited.test", null).onLimited());
+    }
+
+    @Test
+    public void clearRestartsFull() {
+        drain("a.limited.test");
+        limiter.clear();
+        assertEquals(3, drain("a.limited.test"));
+    }
+
+    @Test
+    public void limitedAsDenialOfSameCheck() {
+        drain("a.limited.test");
+        RateLimiter.Bucket bucket = limiter.acquire(policy, "a.limited.test", null);
+        assertTrue(bucket.limited(-1) instanceof UnknownHostException);
+        IOException connect = bucket.limited(443);
+        assertFalse(connect instanceof UnknownHostException);
+        assertEquals("Rate limited - a.limited.test", connect.getMessage());
+    }
+
+    @Test
+    public void limitedConnectIsNotUnknownHost() {
+        TestSupport.loadConfig(
+                "enable = true",
+                "log_type = \"NONE\"",
+                "hot_reload = false",
+                "[allowed]",
+                "    hosts = [\"web.test\"]",
+                "    thread = []",
+                "[rate_limit]",
+                "    hosts = [\"web.test 2 1\"]");
+        URLSecMgr secMgr = new HostResolverTest.StubLookup().add("web.test", 198, 51, 100, 1).create();
+        assertNull(check(secMgr, "web.test", 443));
+        assertNull(check(secMgr, "web.test", 443));
+        Exception connect = check(secMgr, "web.test", 443);
+        assertTrue(connect instanceof IOException);
+        assertFalse(connect instanceof UnknownHostException);
+        assertEquals("Rate limited - web.test", connect.getMessage());
+        assertTrue(check(secMgr, "web.test", -1) instanceof UnknownHostException);
+    }
+
+    // the tokens taken until limited, at most 100
+    private int drain(String host) {
+        for (int taken = 0; taken < 100; taken++) {
+            if (limiter.acquire(policy, host, null) != null) {
+                return taken;
+            }
+        }
+        return 100;
+    }
+
+    // the exception of a denied check, null if allowed
+    private static Exception check(URLSecMgr secMgr, String host, int port) {
+        try {
+            secMgr.checkConnect(host, port);
+            return null;
+        } catch (Exception e) { // thrown without being declared
+            return e;
+        }
+    }
+
+    private void assertLimited(String host) {
+        RateLimiter.Bucket bucket = limiter.acquire(policy, host, null);
+        assertEquals(host, bucket.key);
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * An address shared by several allowed hosts (CDN, anycast) is allowed wherever one of them is.
+ * */
+public class ResolutionCacheTest {
+    private static final String SHARED = "198.51.100.80";
+
+    @Test
+    public void keepsEveryHostOfAddress() {
+        ResolutionCache cache = new ResolutionCache(16, 86400);
+        assertTrue(cache.put(SHARED, "a.test"));
+        assertTrue(cache.put(SHARED, "b.test"));
+        assertFalse(cache.put(SHARED, "a.test"));
+        // the last resolved first
+        assertArrayEquals(new String[]{"a.test", "b.test"}, cache.get(SHARED));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void dropsHostExpiringFirstWhenFull() {
+        ResolutionCache cache = new ResolutionCache(16, 86400);
+        for (int i = 0; i < 20; i++) {
+            cache.put(SHARED, "h" + i + ".test");
+        }
+        String[] hosts = cache.get(SHARED);
+        assertEquals(8, hosts.length);
+        assertEquals("h19.test", hosts[0]);
+        assertTrue(contains(hosts, "h12.test"));
+        assertFalse(contains(hosts, "h11.test"));
+    }
+
+    @Test
+    public void expiresHostsOneByOne() throws UnknownHostException, InterruptedException {
+        ResolutionCache cache = new ResolutionCache(16, 86400);
+        cache.restore("old.test", new InetAddress[]{InetAddress.getByName(SHARED)}, TimeUnit.MILLISECONDS.toNanos(1));
+        cache.put(SHARED, "new.test");
+        Thread.sleep(5);
+        assertArrayEquals(new String[]{"new.test"}, cache.get(SHARED));
+
+        cache.restore("old.test", new InetAddress[]{InetAddress.getByName("198.51.100.81")}, TimeUnit.MILLISECONDS.toNanos(1));
+        Thread.sleep(5);
+        assertNull(cache.get("198.51.100.81"));
+    }
+
+    @Test
+    public void retainsAllowedHostsOnly() {
+        ResolutionCache cache = new ResolutionCache(16, 86400);
+        cache.put(SHARED, "a.test");
+        cache.put(SHARED, "b.test");
+        cache.put("198.51.100.81", "b.test");
+        cache.retainHosts("a.test"::equals);
+        assertArrayEquals(new String[]{"a.test"}, cache.get(SHARED));
+        assertNull(cache.get("198.51.100.81"));
+    }
+
+    @Test
+    public void sharedAddressAllowedOnPortsOfEitherHost() {
+        TestSupport.loadConfig(
+                "enable = true",
+                "log_type = \"NONE\"",
+                "hot_reload = false",
+                "allow_dns = false",
+                "[allowed]",
+                "    hosts = [\"a.test:443\", \"b.test:25565\"]",
+                "    thread = []",
+                "[cache]",
+                "    ttl = 86400");
+        URLSecMgr secMgr = new URLSecMgr();
+        secMgr.getResolutionCache().put(SHARED, "a.test");
+        secMgr.getResolutionCache().put(SHARED, "b.test");
+
+        // b.test was resolved last, a.test must still be allowed on its own port
+        assertTrue(isAllowed(secMgr, SHARED, 443));
+        assertTrue(isAllowed(secMgr, SHARED, 25565));
+        assertFalse(isAllowed(secMgr, SHARED, 80));
+        assertTrue(isAllowed(secMgr, SHARED, 443));
+    }
+
+    private static boolean isAllowed(URLSecMgr secMgr, String host, int port) {
+        try {
+            secMgr.checkConnect(host, port);
+            return true;
+        } catch (Exception e) { // thrown without being declared
+            if (!(e instanceof IOException)) {
+                throw e;
+            }
+            return false;
+        }
+    }
+
+    private static boolean contains(String[] hosts, String host) {
+        for (String h : hosts) {
+            if (h.equals(host)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
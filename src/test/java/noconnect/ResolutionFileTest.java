@@ -0,0 +1,220 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Records written by one ResolutionFile and restored by the next, as across a restart.
+ * */
+public class ResolutionFileTest {
+    private static final long FINGERPRINT = 0x5EED;
+    private static final int HEADER_SIZE = 24;
+    private static final int MAX_SIZE = 4 << 20;
+    private static final long TTL = 1_000_000_000L;
+
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        TestSupport.loadConfig(
+                "enable = true",
+                "log_type = \"NONE\"",
+                "hot_reload = false",
+                "[allowed]",
+                "    hosts = [\"*.test\"]",
+                "    thread = []");
+        file = Files.createTempDirectory("noconnect-test").resolve("resolution.bin");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        ResolutionFile writer = open();
+        writer.append("a.test", addresses("198.51.100.1", "2001:db8::1"), TTL);
+        writer.append("b.test", addresses("198.51.100.2"), TTL);
+        // superseded by the next record of the host
+        writer.append("c.test", addresses("198.51.100.3"), TTL);
+        writer.append("c.test", addresses("198.51.100.4"), TTL);
+        // not allowed by the policy restoring it
+        writer.append("other.example", addresses("198.51.100.5"), TTL);
+        writer.close();
+
+        ResolutionCache cache = new ResolutionCache(16, 86400);
+        assertEquals(3, restore(cache));
+        assertHosts(cache, "198.51.100.1", "a.test");
+        assertHosts(cache, "2001:db8:0:0:0:0:0:1", "a.test");
+        assertHosts(cache, "198.51.100.2", "b.test");
+        assertHosts(cache, "198.51.100.4", "c.test");
+        assertNull(cache.get("198.51.100.3"));
+        assertNull(cache.get("198.51.100.5"));
+    }
+
+    @Test
+    public void stopsAtCorruptRecord() throws IOException {
+        ResolutionFile writer = open();
+        writer.append("a.test", addresses("198.51.100.1"), TTL);
+        writer.append("b.test", addresses("198.51.100.2"), TTL);
+        writer.close();
+        // a flipped bit in the last address
+        long last = readEnd() - 1;
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[(int) last] ^= 1;
+        Files.write(file, bytes);
+
+        ResolutionCache cache = new ResolutionCache(16, 86400);
+        assertEquals(1, restore(cache));
+        assertHosts(cache, "198.51.100.1", "a.test");
+        assertNull(cache.get("198.51.100.2"));
+    }
+
+    @Test
+    public void stopsAtTornRecord() throws IOException {
+        ResolutionFile writer = open();
+        writer.append("a.test", addresses("198.51.100.1"), TTL);
+        long end = readEnd();
+        writer.append("b.test", addresses("198.51.100.2"), TTL);
+        writer.close();
+        // the end was written, the last record was not
+        byte[] bytes = Files.readAllBytes(file);
+        for (int i = (int) end; i < bytes.length; i++) {
+            bytes[i] = 0;
+        }
+        Files.write(file, bytes);
+
+        ResolutionCache cache = new ResolutionCache(16, 86400);
+        assertEquals(1, restore(cache));
+        assertHosts(cache, "198.51.100.1", "a.test");
+
+        // the torn record is dropped on load, later records are not appended after it
+        assertEquals(end, readEnd());
+        ResolutionFile next = open();
+        next.append("c.test", addresses("198.51.100.3"), TTL);
+        next.close();
+        cache = new ResolutionCache(16, 86400);
+        assertEquals(2, restore(cache));
+        assertHosts(cache, "198.51.100.3", "c.test");
+    }
+
+    @Test
+    public void compactsWhenFull() throws IOException {
+        ResolutionFile writer = open();
+        writer.append("kept.test", addresses("198.51.100.1"), TTL);
+        // a refreshed host with many addresses, several times the size of the file
+        InetAddress[] many = new InetAddress[200];
+        int written = 0;
+        int compactions = 0;
+        long end = readEnd();
+        for (int round = 0; written < 3 * MAX_SIZE; round++) {
+            for (int i = 0; i < many.length; i++) {
+                many[i] = InetAddress.getByAddress(new byte[]{0x20, 0x01, 0x0d, (byte) 0xb8, 0, 0, 0, 0,
+                        0, 0, 0, 0, 0, 0, (byte) (round >> 8), (byte) round});
+            }
+            many[1] = InetAddress.getByAddress(new byte[]{(byte) 198, 51, 100, (byte) round});
+            writer.append("refreshed.test", many, TTL);
+            written += 8 + 8 + 2 + "refreshed.test".length() + 1 + 17 * 199 + 5;
+            long newEnd = readEnd();
+            assertTrue(newEnd <= MAX_SIZE);
+            if (newEnd < end) {
+                // the live records only, from the start of the data
+                assertTrue(newEnd < HEADER_SIZE + 2 * 4096);
+                compactions++;
+            }
+            end = newEnd;
+        }
+        writer.close();
+        assertTrue(compactions >= 2);
+        assertTrue(Files.size(file) <= MAX_SIZE);
+
+        ResolutionCache cache = new ResolutionCache(16, 86400);
+        assertEquals(2, restore(cache));
+        assertHosts(cache, "198.51.100.1", "kept.test");
+        assertHosts(cache, many[1].getHostAddress(), "refreshed.test");
+    }
+
+    @Test
+    public void resetByOtherFingerprint() throws IOException {
+        ResolutionFile writer = open();
+        writer.append("a.test", addresses("198.51.100.1"), TTL);
+        writer.close();
+
+        ResolutionFile other = new ResolutionFile(file, FINGERPRINT + 1);
+        assertEquals(0, other.load(Policy.get(), new ResolutionCache(16, 86400)));
+        assertEquals(HEADER_SIZE, readEnd());
+        other.append("b.test", addresses("198.51.100.2"), TTL);
+        other.close();
+
+        // the records of the other allowed hosts are not restored either
+        ResolutionCache cache = new ResolutionCache(16, 86400);
+        assertEquals(0, restore(cache));
+        assertNull(cache.get("198.51.100.1"));
+        assertNull(cache.get("198.51.100.2"));
+    }
+
+    @Test
+    public void appendsNothingAfterReset() throws IOException {
+        ResolutionFile writer = open();
+        writer.append("a.test", addresses("198.51.100.1"), TTL);
+        new ResolutionFile(file, FINGERPRINT + 1).load(Policy.get(), new ResolutionCache(16, 86400));
+        writer.append("b.test", addresses("198.51.100.2"), TTL);
+        writer.close();
+        assertEquals(HEADER_SIZE, readEnd());
+    }
+
+    private ResolutionFile open() {
+        ResolutionFile resolutionFile = new ResolutionFile(file, FINGERPRINT);
+        resolutionFile.load(Policy.get(), new ResolutionCache(16, 86400));
+        return resolutionFile;
+    }
+
+    // as the next start
+    private int restore(ResolutionCache cache) {
+        ResolutionFile resolutionFile = new ResolutionFile(file, FINGERPRINT);
+        int restored = resolutionFile.load(Policy.get(), cache);
+        resolutionFile.close();
+        return restored;
+    }
+
+    private long readEnd() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer end = ByteBuffer.allocate(8);
+            channel.read(end, 16);
+            return end.getLong(0);
+        }
+    }
+
+    private static void assertHosts(ResolutionCache cache, String address, String... hosts) {
+        assertArrayEquals(address, hosts, cache.get(address));
+    }
+
+    private static InetAddress[] addresses(String... literals) throws UnknownHostException {
+        InetAddress[] addresses = new InetAddress[literals.length];
+        for (int i = 0; i < literals.length; i++) {
+            addresses[i] = InetAddress.getByName(literals[i]);
+        }
+        return addresses;
+    }
+
+}
@@ -0,0 +1,351 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Checks URLSecMgr from many threads at once, while policies are republished to clear the caches under load.
+ * Offline on every JDK: DNS is a stub that blocks until released and counts its queries, it checks the lookup
+ * as InetAddress does once installed, so the nested checks of HostResolver run too. Nothing is installed.
+ * */
+public class StressTest {
+    private static final int THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    private static final int ITERATIONS = Integer.getInteger("noconnect.stress.iterations", 50_000);
+    // far below a single thread, only a lock or a query on the cached path gets there
+    private static final long MIN_CHECKS_PER_SECOND = 20_000;
+    private static final long TIMEOUT_SECONDS = 30;
+    private static final String[] RESOLVED_HOSTS = {"allowed.test", "a.wild.test", "api.example.com"};
+    private static final int DISTINCT_HOSTS = 16;
+
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void setup() {
+        TestSupport.loadConfig(
+                "enable = true",
+                "allow_dns = true",
+                "log_type = \"NONE\"",
+                "hot_reload = false",
+                "[allowed]",
+                "    hosts = [\"allowed.test\", \"*.wild.test\", \"api.example.com:443\"]",
+                "    ip = [\"203.0.113.0/24\"]",
+                "    thread = []",
+                "[cache]",
+                "    ttl = 86400",
+                "    preresolve = false");
+    }
+
+    @Test
+    public void cachedVerdictsMatchSingleThread() throws InterruptedException {
+        List<Case> cases = createCases();
+        boolean[] expected = new boolean[cases.size()];
+        URLSecMgr reference = createSeededSecMgr();
+        for (int i = 0; i < cases.size(); i++) {
+            expected[i] = cases.get(i).isAllowed(reference);
+        }
+        URLSecMgr secMgr = createSeededSecMgr();
+        runRandomChecks(secMgr, cases, expected, new Random(THREADS), ITERATIONS);
+        long before = secMgr.getMetrics().getConnectChecks();
+
+        long nanos = runConcurrently(secMgr, t -> runRandomChecks(secMgr, cases, expected, new Random(t), ITERATIONS));
+
+        assertTrue(String.join("\n", failures), failures.isEmpty());
+        assertEquals("checks recorded by the metrics", (long) THREADS * ITERATIONS,
+                secMgr.getMetrics().getConnectChecks() - before);
+        int cacheSize = secMgr.getResolutionCache().size();
+        assertTrue("resolution cache holds " + cacheSize + " entries, over its maximum " + Config.getCacheMaxSize(),
+                cacheSize <= Config.getCacheMaxSize());
+        long perSecond = (long) THREADS * ITERATIONS * TimeUnit.SECONDS.toNanos(1) / Math.max(1, nanos);
+        assertTrue(perSecond + " checks per second", perSecond >= MIN_CHECKS_PER_SECOND);
+    }
+
+    @Test
+    public void resolvesOncePerHostUnderLoad() throws InterruptedException {
+        BlockingLookup lookup = new BlockingLookup();
+        List<String> resolvable = new ArrayList<>();
+        List<String> unresolvable = new ArrayList<>();
+        List<String> denied = new ArrayList<>();
+        for (int i = 0; i < DISTINCT_HOSTS / 2; i++) {
+            resolvable.add(lookup.add("h" + i + ".wild.test", 100 + i));
+            unresolvable.add("gone" + i + ".wild.test");
+            denied.add("h" + i + ".blocked.example");
+        }
+        URLSecMgr secMgr = lookup.create();
+        long before = secMgr.getMetrics().getConnectChecks();
+        List<String> names = new ArrayList<>(resolvable);
+        names.addAll(unresolvable);
+        names.addAll(denied);
+
+        Thread releaser = new Thread(() -> {
+            // until the first query is in, then long enough for the other threads to pile up on it
+            try {
+                lookup.awaitStarted();
+                Thread.sleep(100);
+            } catch (InterruptedException ignored) {
+            }
+            lookup.release();
+        }, "NoConnectStress-Release");
+        releaser.start();
+        runConcurrently(secMgr, t -> {
+            List<String> order = new ArrayList<>(names);
+            Collections.shuffle(order, new Random(t));
+            for (String host : order) {
+                expect(secMgr, host, 443, !denied.contains(host));
+            }
+            // each resolved address is allowed through the cache, another one is not
+            for (int i = 0; i < resolvable.size(); i++) {
+                expect(secMgr, "198.51.100." + (100 + i), 443, true);
+            }
+            expect(secMgr, "198.51.100.250", 443, false);
+        });
+        releaser.join();
+
+        assertTrue(String.join("\n", failures), failures.isEmpty());
+        for (String host : resolvable) {
+            assertEquals("queries of " + host, 1, lookup.queries(host));
+            assertEquals(1, secMgr.getResolutionCache().getAddresses(host).length);
+        }
+        for (String host : unresolvable) {
+            assertEquals("queries of " + host, 1, lookup.queries(host));
+            assertEquals(0, secMgr.getResolutionCache().getAddresses(host).length);
+        }
+        for (String host : denied) {
+            assertEquals("queries of " + host, 0, lookup.queries(host));
+        }
+        // and the nested check of each query
+        long checks = (long) THREADS * (names.size() + resolvable.size() + 1) + resolvable.size() + unresolvable.size();
+        assertEquals("checks recorded by the metrics", checks, secMgr.getMetrics().getConnectChecks() - before);
+    }
+
+    /**
+     * @return the nanoseconds the threads ran for, a reloader publishes new policies meanwhile
+     */
+    private long runConcurrently(URLSecMgr secMgr, Worker worker) throws InterruptedException {
+        CountDownLatch ready = new CountDownLatch(THREADS);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int index = t;
+            Thread thread = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                    worker.run(index);
+                } catch (InterruptedException ignored) {
+                } catch (RuntimeException | Error e) {
+                    failures.add(Thread.currentThread().getName() + ": " + e);
+                }
+            }, "NoConnectStress-" + t);
+            workers.add(thread);
+            thread.start();
+        }
+        // the caches are cleared by every new policy, checks must not see a half cleared state
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread reloader = new Thread(() -> {
+            while (running.get()) {
+                Policy.publish(Policy.compile());
+                Thread.yield();
+            }
+        }, "NoConnectStress-Reload");
+        ready.await();
+        reloader.start();
+        long start = System.nanoTime();
+        go.countDown();
+        for (Thread thread : workers) {
+            thread.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+            assertTrue(thread.getName() + " is stuck", !thread.isAlive());
+        }
+        long nanos = System.nanoTime() - start;
+        running.set(false);
+        reloader.join();
+        return nanos;
+    }
+
+    private void runRandomChecks(URLSecMgr secMgr, List<Case> cases, boolean[] expected, Random random, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            int index = random.nextInt(cases.size());
+            Case check = cases.get(index);
+            if (check.isAllowed(secMgr) != expected[index]) {
+                addFailure(check, expected[index]);
+            }
+        }
+    }
+
+    private void expect(URLSecMgr secMgr, String host, int port, boolean allowed) {
+        Case check = new Case(host, port);
+        if (check.isAllowed(secMgr) != allowed) {
+            addFailure(check, allowed);
+        }
+    }
+
+    private void addFailure(Case check, boolean expected) {
+        if (failures.size() < 100) {
+            failures.add(Thread.currentThread().getName() + ": " + check + " was " + (expected ? "denied" : "allowed"));
+        }
+    }
+
+    /*
+     * The addresses of the allowed names, as if resolved by HostResolver, so no check queries DNS
+     * */
+    private static URLSecMgr createSeededSecMgr() {
+        URLSecMgr secMgr = new URLSecMgr(host -> {
+            throw new AssertionError("unexpected query of " + host);
+        });
+        ResolutionCache cache = secMgr.getResolutionCache();
+        List<String> hosts = new ArrayList<>();
+        Collections.addAll(hosts, RESOLVED_HOSTS);
+        for (int i = 0; i < DISTINCT_HOSTS; i++) {
+            hosts.add("h" + i + ".wild.test");
+        }
+        int last = 1;
+        for (String host : hosts) {
+            InetAddress resolved = address(host, last++);
+            cache.put(resolved.getHostAddress(), host);
+            cache.markResolved(host, new InetAddress[]{resolved});
+        }
+        return secMgr;
+    }
+
+    private static List<Case> createCases() {
+        List<Case> cases = new ArrayList<>();
+        cases.add(new Case("127.0.0.1", 25565));
+        cases.add(new Case("localhost", 25565));
+        cases.add(new Case("::1", 25565));
+        cases.add(new Case("allowed.test", 443));
+        cases.add(new Case("allowed.test", -1));
+        cases.add(new Case("a.wild.test", 25565));
+        cases.add(new Case("wild.test", 443));
+        cases.add(new Case("api.example.com", 443));
+        cases.add(new Case("api.example.com", 80));
+        cases.add(new Case("blocked.test", 443));
+        cases.add(new Case("blocked.test", -1));
+        // the resolved IP of allowed.test
+        cases.add(new Case("198.51.100.1", 443));
+        cases.add(new Case("203.0.113.10", 25565));
+        cases.add(new Case("192.0.2.10", 25565));
+        cases.add(new Case("2001:db8::1", 443));
+        cases.add(new Case("192.0.2.53", 53));
+        for (int i = 0; i < DISTINCT_HOSTS; i++) {
+            // distinct names, each goes through the uncached path once per policy
+            cases.add(new Case("h" + i + ".blocked.example", 443));
+            cases.add(new Case("h" + i + ".wild.test", 443));
+        }
+        return cases;
+    }
+
+    private static InetAddress address(String host, int last) {
+        try {
+            return InetAddress.getByAddress(host, new byte[]{(byte) 198, 51, 100, (byte) last});
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private interface Worker {
+        void run(int thread) throws InterruptedException;
+    }
+
+    /*
+     * Blocks every query until released, a host without an answer does not resolve
+     * */
+    private static final class BlockingLookup implements Function<String, InetAddress[]> {
+        private final Map<String, InetAddress[]> answers = new ConcurrentHashMap<>();
+        private final Map<String, AtomicInteger> queries = new ConcurrentHashMap<>();
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+        private URLSecMgr secMgr;
+
+        private String add(String host, int last) {
+            answers.put(host, new InetAddress[]{address(host, last)});
+            return host;
+        }
+
+        private URLSecMgr create() {
+            secMgr = new URLSecMgr(this);
+            return secMgr;
+        }
+
+        private void awaitStarted() throws InterruptedException {
+            started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+
+        private void release() {
+            released.countDown();
+        }
+
+        private int queries(String host) {
+            AtomicInteger count = queries.get(host);
+            return count == null ? 0 : count.get();
+        }
+
+        @Override
+        public InetAddress[] apply(String host) {
+            queries.computeIfAbsent(host, h -> new AtomicInteger()).incrementAndGet();
+            started.countDown();
+            try {
+                released.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                secMgr.checkConnect(host, -1);
+            } catch (Exception e) { // thrown without being declared
+                if (e instanceof UnknownHostException) {
+                    return null;
+                }
+                throw e;
+            }
+            return answers.get(host);
+        }
+    }
+
+    private static final class Case {
+        private final String host;
+        private final int port;
+
+        private Case(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        private boolean isAllowed(URLSecMgr secMgr) {
+            try {
+                secMgr.checkConnect(host, port);
+                return true;
+            } catch (Exception e) { // thrown without being declared
+                if (!(e instanceof IOException)) {
+                    throw e;
+                }
+                return false;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+}
@@ -0,0 +1,36 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/*
+ * Loads a config written by the test and publishes its policy, as NoConnectSMLoad does at startup.
+ * */
+final class TestSupport {
+
+    private TestSupport() {
+    }
+
+    /**
+     * @param lines of the TOML config, keys left out keep their default
+     */
+    static void loadConfig(String... lines) {
+        try {
+            Path dir = Files.createTempDirectory("noconnect-test");
+            Path configPath = dir.resolve("noconnect.toml");
+            Files.write(configPath, (String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8));
+            Config.loadConfig(configPath);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Policy.publish(Policy.compile());
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * A path under a rule must not reach another path once the server decodes and normalizes it
+ * */
+public class UrlRulesTest {
+    private final UrlRules rules = UrlRules.compile(Collections.singletonList("GET https://api.example.com/v1/profile"));
+
+    @Test
+    public void allowsPathsUnderRule() {
+        assertTrue(isAllowed("https://api.example.com/v1/profile"));
+        assertTrue(isAllowed("https://api.example.com/v1/profile/name?full=1"));
+        assertTrue(isAllowed("https://api.example.com/v1/profile/a%20b"));
+        assertTrue(isAllowed("https://api.example.com/v1/profile/..name"));
+    }
+
+    @Test
+    public void deniesDotSegments() {
+        assertFalse(isAllowed("https://api.example.com/v1/profile/../telemetry"));
+        assertFalse(isAllowed("https://api.example.com/v1/profile/%2e%2E/telemetry"));
+        assertFalse(isAllowed("https://api.example.com/v1/profile/./"));
+    }
+
+    @Test
+    public void deniesEncodedSeparators() {
+        assertFalse(isAllowed("https://api.example.com/v1/profile/..%2ftelemetry"));
+        assertFalse(isAllowed("https://api.example.com/v1/profile/..%2Ftelemetry"));
+        assertFalse(isAllowed("https://api.example.com/v1/profile/..%5ctelemetry"));
+        assertFalse(isAllowed("https://api.example.com/v1/profile/name%5C"));
+        assertFalse(isAllowed("https://api.example.com/v1/profile%2f..%2ftelemetry"));
+    }
+
+    @Test
+    public void deniesBackslashes() {
+        assertFalse(isAllowed("https://api.example.com/v1/profile/..\\telemetry"));
+        assertFalse(isAllowed("https://api.example.com/v1/profile\\..\\telemetry"));
+        assertFalse(isAllowed("https://api.example.com/v1/profile/name\\"));
+        assertFalse(isAllowed("https://api.example.com/v1/profile/\\"));
+    }
+
+    @Test
+    public void deniesOtherPathsAndMethods() {
+        assertFalse(isAllowed("https://api.example.com/v1/telemetry"));
+        assertFalse(isAllowed("http://api.example.com/v1/profile"));
+        assertFalse(rules.isAllowed(parse("https://api.example.com/v1/profile"), "POST"));
+        assertTrue(isAllowed("https://other.example.com/anything"));
+    }
+
+    private boolean isAllowed(String url) {
+        return rules.isAllowed(parse(url), "GET");
+    }
+
+    private static UrlName parse(String url) {
+        UrlName name = new UrlName();
+        assertTrue(url, name.parse(url));
+        return name;
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Open Software License version 3.0
+ */
+
+package noconnect;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Cached verdicts of a (host, port), and the policy published after them taking over at once.
+ * */
+public class VerdictCacheTest {
+
+    @Test
+    public void entryPerPort() {
+        VerdictCache cache = new VerdictCache(16, 60);
+        cache.put("web.test", 80, Verdict.DENIED);
+        cache.put("web.test", 443, Verdict.ALLOWED_HOST);
+        assertSame(Verdict.DENIED, cache.get("web.test", 80).verdict);
+        assertSame(Verdict.ALLOWED_HOST, cache.get("web.test", 443).verdict);
+        assertNull(cache.get("web.test", 8080));
+        assertNull(cache.get("other.test", 80));
+        cache.clear();
+        assertNull(cache.get("web.test", 80));
+    }
+
+    @Test
+    public void renewedOnlyBySameVerdict() {
+        VerdictCache cache = new VerdictCache(16, 60);
+        assertFalse(cache.put("web.test", 80, Verdict.DENIED).isRenewed());
+        assertTrue(cache.put("web.test", 80, Verdict.DENIED).isRenewed());
+        assertFalse(cache.put("web.test", 80, Verdict.ALLOWED_HOST).isRenewed());
+        assertSame(Verdict.ALLOWED_HOST, cache.get("web.test", 80).verdict);
+    }
+
+    @Test
+    public void disabledWithoutTtl() {
+        VerdictCache cache = new VerdictCache(16, 0);
+        assertSame(Verdict.DENIED, cache.put("web.test", 80, Verdict.DENIED).verdict);
+        assertNull(cache.get("web.test", 80));
+    }
+
+    @Test
+    public void deniedTypeOfLookupAndConnect() {
+        VerdictCache cache = new VerdictCache(16, 60);
+        assertTrue(cache.put("web.test", -1, Verdict.DENIED).denied() instanceof UnknownHostException);
+        IOException connect = cache.put("web.test", 80, Verdict.DENIED).denied();
+        assertFalse(connect instanceof UnknownHostException);
+        assertEquals("Denied - web.test:80", connect.getMessage());
+    }
+
+    @Test
+    public void deniedHostAllowedOncePublished() {
+        loadAllowed("[\"other.test\"]");
+        URLSecMgr secMgr = new HostResolverTest.StubLookup().add("web.test", 198, 51, 100, 1).create();
+        assertFalse(isAllowed(secMgr, "web.test", 80));
+        // repeated from the cache
+        assertFalse(isAllowed(secMgr, "web.test", 80));
+
+        loadAllowed("[\"web.test\"]");
+        assertTrue(isAllowed(secMgr, "web.test", 80));
+    }
+
+    @Test
+    public void allowedPortDeniedOncePublished() {
+        loadAllowed("[\"web.test\"]");
+        URLSecMgr secMgr = new HostResolverTest.StubLookup().add("web.test", 198, 51, 100, 1).create();
+        assertTrue(isAllowed(secMgr, "web.test", 80));
+        assertTrue(secMgr.getResolutionCache().isResolved("web.test"));
+
+        // still allowed and resolved, only on another port
+        loadAllowed("[\"web.test:443\"]");
+        assertTrue(secMgr.getResolutionCache().isResolved("web.test"));
+        assertFalse(isAllowed(secMgr, "web.test", 80));
+        assertTrue(isAllowed(secMgr, "web.test", 443));
+    }
+
+    private static void loadAllowed(String hosts) {
+        TestSupport.loadConfig(
+                "enable = true",
+                "log_type = \"NONE\"",
+                "hot_reload = false",
+                "[allowed]",
+                "    hosts = " + hosts,
+                "    thread = []",
+                "[cache]",
+                "    verdict_ttl = 60");
+    }
+
+    private static boolean isAllowed(URLSecMgr secMgr, String host, int port) {
+        try {
+            secMgr.checkConnect(host, port);
+            return true;
+        } catch (Exception e) { // thrown without being declared
+            if (!(e instanceof IOException)) {
+                throw e;
+            }
+            return false;
+        }
+    }
+
+}